@@ -0,0 +1,349 @@
+/**
+ * Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Block-Max WAND (BMW) evaluation of BM25 #SUM queries.  Only the top
+ *  k documents of a query are reported, so a document whose score can
+ *  not reach the k'th best score found so far does not need to be
+ *  scored.
+ *  <p>
+ *  Each term inverted list is divided into blocks of BLOCK_SIZE
+ *  postings.  For each block, the last docid, the largest tf, and the
+ *  smallest field length are stored with the list:  ExportIndex writes
+ *  them into the native index, and otherwise InvListCache keeps them
+ *  next to the cached list.  They do not depend on the BM25
+ *  parameters, so when a query starts, each block's upper bound is
+ *  just the BM25 score of its largest tf in its shortest document.
+ *  </p><p>
+ *  The evaluator keeps the arguments sorted by their current docid,
+ *  picks as the pivot the first document whose list-level upper bound
+ *  could reach the threshold, and then checks the tighter block-level
+ *  bound of that document.  When the block-level bound is too low,
+ *  every list before the pivot skips past its current block.
+ *  </p><p>
+ *  Scores are computed by the same QrySopScore objects, and summed in
+ *  the same order, as QrySopSum, so the top k documents and their
+ *  scores are identical to document-at-a-time evaluation.
+ *  </p>
+ */
+public class BlockMaxWand {
+
+    //  --------------- Constants and variables ---------------------
+
+    /**
+     *  The number of postings in a block.
+     */
+    static final int BLOCK_SIZE = 64;
+
+    //  --------------- Nested classes --------------------------------
+
+    /**
+     *  Block-max metadata of one term inverted list.  It describes the
+     *  postings, not their scores, so it is computed once per list and
+     *  is valid for any BM25 parameters.
+     */
+    static class BlockMax {
+
+        /**
+         *  The last docid of each block.
+         */
+        int[] lastDocid;
+
+        /**
+         *  The largest tf of any posting in each block.
+         */
+        int[] maxTf;
+
+        /**
+         *  The smallest field length of any posting in each block.
+         */
+        int[] minLength;
+
+        /**
+         *  Metadata for an inverted list with df postings.  Each block
+         *  is filled in by add.
+         *  @param df The number of postings.
+         */
+        BlockMax(int df) {
+
+            int nBlocks = (df + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+            this.lastDocid = new int[nBlocks];
+            this.maxTf = new int[nBlocks];
+            this.minLength = new int[nBlocks];
+            Arrays.fill(this.minLength, Integer.MAX_VALUE);
+        }
+
+        /**
+         *  Add a posting.  Postings must be added in docid order.
+         *  @param p The index of the posting in the inverted list.
+         *  @param docid The posting's internal document id.
+         *  @param tf The posting's term frequency.
+         *  @param length The length of the field in the document.
+         */
+        void add(int p, int docid, int tf, int length) {
+
+            int block = p / BLOCK_SIZE;
+
+            this.lastDocid[block] = docid;
+            this.maxTf[block] = Math.max(this.maxTf[block], tf);
+            this.minLength[block] = Math.min(this.minLength[block], length);
+        }
+
+        /**
+         *  Compute the metadata of an inverted list, reading field
+         *  lengths from Idx.
+         *  @param invList A term inverted list.
+         *  @return The metadata.
+         *  @throws IOException Error accessing the Lucene index.
+         */
+        static BlockMax build(InvList invList) throws IOException {
+
+            BlockMax b = new BlockMax(invList.df);
+
+            for (int p = 0; p < invList.df; p++) {
+                int docid = invList.getDocid(p);
+                b.add(p, docid, invList.getTf(p), Idx.getFieldLength(invList.field, docid));
+            }
+
+            return b;
+        }
+
+        /**
+         *  Get the number of bytes that the metadata uses.
+         */
+        long ramBytesUsed() {
+            return 12L * this.lastDocid.length;
+        }
+
+        /**
+         *  Find the first block, at or after block start, whose last
+         *  docid is at least docid.
+         *  @param start The block to start searching from.
+         *  @param docid An internal document id.
+         *  @return The block index, or the number of blocks if there is none.
+         */
+        int findBlock(int start, int docid) {
+
+            int n = this.lastDocid.length;
+
+            while ((start < n) && (this.lastDocid[start] < docid))
+                start++;
+
+            return start;
+        }
+    }
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     *  Indicates whether a query can be evaluated by BlockMaxWand.  The
+     *  query must be a #SUM whose arguments are all SCORE operators of
+     *  terms, and the block-max metadata of the terms must be stored,
+     *  i.e., a native index is open or the InvListCache is enabled.
+     *  @param q An optimized query.
+     *  @return True if the query can be evaluated.
+     */
+    public static boolean canEvaluate(Qry q) {
+
+        if (!(q instanceof QrySopSum) || (q.args.size() == 0))
+            return false;
+
+        if ((Idx.getNativeIndex() == null) && !InvListCache.isEnabled())
+            return false;
+
+        for (Qry q_i : q.args) {
+            if (!(q_i instanceof QrySopScore) ||
+                !(q_i.getArg(0) instanceof QryIopTerm))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     *  Evaluate a query and return its top k documents.
+     *  @param q A query that canEvaluate accepts.  It must not be
+     *         initialized yet.
+     *  @param r The BM25 retrieval model.
+     *  @param k The number of documents that will be reported.
+     *  @return The top k documents, sorted by score and external id.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public static ScoreList evaluate(Qry q, RetrievalModelBM25 r, int k)
+            throws IOException {
+
+        q.initialize(r);
+
+        int n = q.args.size();
+        QrySopScore[] scorers = new QrySopScore[n];
+        BlockMax[] blockMax = new BlockMax[n];
+        double[][] blockMaxScore = new double[n][];
+        double[] maxScore = new double[n];
+        int[] docids = new int[n];
+        int[] blocks = new int[n];
+        int[] order = new int[n];
+
+        for (int i = 0; i < n; i++) {
+            scorers[i] = (QrySopScore) q.args.get(i);
+            blockMax[i] = getBlockMax((QryIopTerm) scorers[i].getArg(0));
+            blockMaxScore[i] = new double[blockMax[i].lastDocid.length];
+
+            //  A block's bound is the score of its largest tf in its
+            //  shortest document.  The list's bound is the largest
+            //  block bound.
+
+            for (int b = 0; b < blockMaxScore[i].length; b++) {
+                blockMaxScore[i][b] = scorers[i].calculateBM25ScoreBound(
+                        r, blockMax[i].maxTf[b], blockMax[i].minLength[b]);
+                maxScore[i] = Math.max(maxScore[i], blockMaxScore[i][b]);
+            }
+
+            docids[i] = currentDocid(scorers[i], r);
+            order[i] = i;
+        }
+
+        TopKCollector topK = new TopKCollector(k);
+
+        while (true) {
+
+            double threshold = topK.getThreshold();
+
+            //  Sort the arguments by docid.  The order changes a little
+            //  on each pass, so insertion sort is fast.
+
+            for (int j = 1; j < n; j++) {
+                int o = order[j];
+                int m = j - 1;
+
+                while ((m >= 0) && (docids[order[m]] > docids[o])) {
+                    order[m + 1] = order[m];
+                    m--;
+                }
+
+                order[m + 1] = o;
+            }
+
+            //  Find the pivot:  the first argument at which the sum of
+            //  list-level bounds could reach the threshold.
+
+            int pivot = -1;
+            double bound = 0.0;
+
+            for (int j = 0; j < n; j++) {
+                int i = order[j];
+
+                if (docids[i] == Integer.MAX_VALUE)
+                    break;
+
+                bound += maxScore[i];
+
+                if (!ScoreBounds.isBelow(bound, threshold)) {
+                    pivot = j;
+                    break;
+                }
+            }
+
+            if (pivot < 0)
+                break;                // No remaining document can qualify.
+
+            int pivotDoc = docids[order[pivot]];
+
+            while ((pivot + 1 < n) && (docids[order[pivot + 1]] == pivotDoc))
+                pivot++;
+
+            //  Check the block-level bound of the pivot document, and
+            //  find the first docid beyond the blocks that were checked.
+
+            double blockBound = 0.0;
+            int next = (pivot + 1 < n) ? docids[order[pivot + 1]] : Integer.MAX_VALUE;
+
+            for (int j = 0; j <= pivot; j++) {
+                int i = order[j];
+                BlockMax b_i = blockMax[i];
+
+                blocks[i] = b_i.findBlock(blocks[i], pivotDoc);
+
+                if (blocks[i] < b_i.lastDocid.length) {
+                    blockBound += blockMaxScore[i][blocks[i]];
+                    next = Math.min(next, b_i.lastDocid[blocks[i]] + 1);
+                }
+            }
+
+            if (ScoreBounds.isBelow(blockBound, threshold)) {
+
+                //  No document before next can qualify.
+
+                for (int j = 0; j <= pivot; j++) {
+                    int i = order[j];
+                    scorers[i].docIteratorAdvanceTo(next);
+                    docids[i] = currentDocid(scorers[i], r);
+                }
+
+                continue;
+            }
+
+            if (docids[order[0]] != pivotDoc) {
+
+                //  Move the lists before the pivot to the pivot document.
+
+                for (int j = 0; j <= pivot; j++) {
+                    int i = order[j];
+
+                    if (docids[i] < pivotDoc) {
+                        scorers[i].docIteratorAdvanceTo(pivotDoc);
+                        docids[i] = currentDocid(scorers[i], r);
+                    }
+                }
+
+                continue;
+            }
+
+            //  Score the pivot document the same way that QrySopSum does.
+
+            double score = 0.0;
+
+            for (int i = 0; i < n; i++) {
+                if (docids[i] == pivotDoc)
+                    score += scorers[i].getScore(r);
+            }
+
+            topK.add(pivotDoc, score);
+
+            for (int i = 0; i < n; i++) {
+                if (docids[i] == pivotDoc) {
+                    scorers[i].docIteratorAdvancePast(pivotDoc);
+                    docids[i] = currentDocid(scorers[i], r);
+                }
+            }
+        }
+
+        return topK.toScoreList();
+    }
+
+    /**
+     *  Get the stored block-max metadata of a term's inverted list.
+     */
+    private static BlockMax getBlockMax(QryIopTerm term) throws IOException {
+
+        NativeIndex nativeIndex = Idx.getNativeIndex();
+
+        if (nativeIndex != null)
+            return nativeIndex.getBlockMax(term.getField(), term.getTerm());
+
+        return InvListCache.getBlockMax(term.getTerm(), term.getField());
+    }
+
+    /**
+     *  Get the docid that a SCORE operator points to.
+     *  @return The docid, or Integer.MAX_VALUE if it is exhausted.
+     */
+    private static int currentDocid(QrySopScore scorer, RetrievalModel r) {
+        return scorer.docIteratorHasMatch(r) ?
+                scorer.docIteratorGetMatch() : Integer.MAX_VALUE;
+    }
+}
@@ -1,3 +1,5 @@
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Set;
 
 /**
@@ -11,10 +13,11 @@ public class DocFeatures {
     Double [] scores;
     String externalId;
 
-    static Set<Integer> disableSet;
+    // read by feature formatting threads, so it is replaced, never modified
+    static volatile Set<Integer> disableSet;
 
     static void setDisableSet(Set<Integer> set) {
-        disableSet = set;
+        disableSet = (set == null) ? null : Collections.unmodifiableSet(new HashSet<>(set));
     }
 
     static boolean notDisableItem(Set<Integer> set, int item) {
@@ -3,31 +3,234 @@
  */
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.NumericDocValues;
-import org.apache.lucene.index.MultiDocValues;
-import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.util.packed.PackedInts;
 
 /**
  * DocLengthStore is used to access the document lengths of indexed docs.
+ * <p>
+ * By default lengths are read from the norms of the index segment
+ * (leaf) that contains the document, which is found with a binary
+ * search of the leaves' doc bases on every call.  Alternatively the
+ * lengths of every field can be copied into a dense column when the
+ * store is created, so that a lookup is a single array access.  See
+ * {@link Columns}.
+ * </p>
  */
 public class DocLengthStore  {
 
+  /**
+   * How document lengths are stored.
+   */
+  public enum Columns {
+    /** Read lengths from Lucene on each call. */
+    NONE,
+    /** Copy lengths into an int[] per field. */
+    INT,
+    /** Copy lengths into a packed array per field, using the fewest
+        bits that hold the longest document. */
+    PACKED
+  }
+
   private IndexReader reader;
-  private  Map<String, NumericDocValues> values = new HashMap<String, NumericDocValues>();
+
+  /**
+   * The first docid of each leaf.
+   */
+  private int[] docBases;
+
+  /**
+   * The lengths of each field, one entry per leaf.  A field that has
+   * no lengths in any leaf maps to null.
+   */
+  private Map<String, NumericDocValues[]> values =
+    new HashMap<String, NumericDocValues[]>();
+
+  private Map<String, int[]> intColumns = new HashMap<String, int[]>();
+  private Map<String, PackedInts.Mutable> packedColumns =
+    new HashMap<String, PackedInts.Mutable>();
 
   /**
    * @param reader IndexReader object created in {@link Idx}.
    */
   public DocLengthStore(IndexReader reader) throws IOException {
+    this(reader, Columns.NONE);
+  }
+
+  /**
+   * @param reader IndexReader object created in {@link Idx}.
+   * @param columns How lengths are stored.  Columns are loaded in
+   * parallel, one field per thread.
+   */
+  public DocLengthStore(IndexReader reader, Columns columns) throws IOException {
     this.reader = reader;
-    for (String field : MultiFields.getIndexedFields(reader)) {
-      this.values.put(field, MultiDocValues.getNormValues(reader, field));      
+
+    List<AtomicReaderContext> leaves = reader.leaves();
+
+    this.docBases = new int[leaves.size()];
+
+    for (int i = 0; i < leaves.size(); i++) {
+      this.docBases[i] = leaves.get(i).docBase;
+
+      for (FieldInfo fi : leaves.get(i).reader().getFieldInfos()) {
+        if (fi.isIndexed() && !this.values.containsKey(fi.name)) {
+          this.values.put(fi.name, this.getLeafNorms(leaves, fi.name));
+        }
+      }
+    }
+
+    if (columns != Columns.NONE) {
+      this.loadColumns(columns);
     }
   }
 
+  /**
+   * Get the norms of a field in each leaf.  Leaves that do not have
+   * the field get lengths of 0.
+   * @return The norms, or null if no leaf has norms for the field.
+   */
+  private NumericDocValues[] getLeafNorms(List<AtomicReaderContext> leaves,
+                                          String field) throws IOException {
+    NumericDocValues[] norms = new NumericDocValues[leaves.size()];
+    boolean found = false;
+
+    for (int i = 0; i < norms.length; i++) {
+      norms[i] = leaves.get(i).reader().getNormValues(field);
+
+      if (norms[i] == null) {
+        norms[i] = NumericDocValues.EMPTY;
+      } else {
+        found = true;
+      }
+    }
+
+    return found ? norms : null;
+  }
+
+  /**
+   * Copy the lengths of every field that has them into columns.
+   */
+  private void loadColumns(final Columns columns) throws IOException {
+
+    List<String> fields = new ArrayList<String>();
+
+    for (Map.Entry<String, NumericDocValues[]> e : this.values.entrySet()) {
+      if (e.getValue() != null) {
+        fields.add(e.getKey());
+      }
+    }
+
+    if (fields.isEmpty()) {
+      return;
+    }
+
+    int nThreads =
+      Math.min(fields.size(), Runtime.getRuntime().availableProcessors());
+    ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+    List<Future<Object>> columnFutures = new ArrayList<Future<Object>>();
+
+    for (final String field : fields) {
+      final NumericDocValues[] lengths = this.values.get(field);
+
+      columnFutures.add(pool.submit(new Callable<Object>() {
+        public Object call() {
+          return (columns == Columns.INT) ?
+            loadIntColumn(lengths) : loadPackedColumn(lengths);
+        }
+      }));
+    }
+
+    pool.shutdown();
+
+    try {
+      for (int i = 0; i < fields.size(); i++) {
+        Object column = columnFutures.get(i).get();
+
+        if (column instanceof int[]) {
+          this.intColumns.put(fields.get(i), (int[]) column);
+        } else {
+          this.packedColumns.put(fields.get(i), (PackedInts.Mutable) column);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while loading document lengths", e);
+    } catch (ExecutionException e) {
+      throw new IOException("Unable to load document lengths", e.getCause());
+    }
+  }
+
+  /**
+   * Copy a field's lengths into an int[].
+   */
+  private int[] loadIntColumn(NumericDocValues[] lengths) {
+    int[] column = new int[this.reader.maxDoc()];
+
+    for (int leaf = 0; leaf < lengths.length; leaf++) {
+      int docBase = this.docBases[leaf];
+      int end = this.getLeafEnd(leaf);
+
+      for (int docid = docBase; docid < end; docid++) {
+        column[docid] = (int) lengths[leaf].get(docid - docBase);
+      }
+    }
+
+    return column;
+  }
+
+  /**
+   * Copy a field's lengths into a packed array that is just wide
+   * enough for the longest document.
+   */
+  private PackedInts.Mutable loadPackedColumn(NumericDocValues[] lengths) {
+    int maxDoc = this.reader.maxDoc();
+    long maxLength = 0;
+
+    for (int leaf = 0; leaf < lengths.length; leaf++) {
+      int n = this.getLeafEnd(leaf) - this.docBases[leaf];
+
+      for (int docid = 0; docid < n; docid++) {
+        maxLength = Math.max(maxLength, lengths[leaf].get(docid));
+      }
+    }
+
+    PackedInts.Mutable column =
+      PackedInts.getMutable(maxDoc, PackedInts.bitsRequired(maxLength),
+                            PackedInts.COMPACT);
+
+    for (int leaf = 0; leaf < lengths.length; leaf++) {
+      int docBase = this.docBases[leaf];
+      int end = this.getLeafEnd(leaf);
+
+      for (int docid = docBase; docid < end; docid++) {
+        column.set(docid, lengths[leaf].get(docid - docBase));
+      }
+    }
+
+    return column;
+  }
+
+  /**
+   * Returns the docid after the last document of a leaf.
+   */
+  private int getLeafEnd(int leaf) {
+    return (leaf + 1 < this.docBases.length) ?
+      this.docBases[leaf + 1] : this.reader.maxDoc();
+  }
+
   /**
    * Returns the length of the specified field in the specified document.
    *
@@ -36,6 +239,38 @@ public class DocLengthStore  {
    * @param docid The internal docid in the lucene index.
    */
   public long getDocLength(String fieldname, int docid) throws IOException {
-    return values.get(fieldname).get(docid);
+    int[] intColumn = this.intColumns.get(fieldname);
+
+    if (intColumn != null) {
+      return intColumn[docid];
+    }
+
+    PackedInts.Mutable packedColumn = this.packedColumns.get(fieldname);
+
+    if (packedColumn != null) {
+      return packedColumn.get(docid);
+    }
+
+    int leaf = ReaderUtil.subIndex(docid, this.docBases);
+
+    return values.get(fieldname)[leaf].get(docid - this.docBases[leaf]);
+  }
+
+  /**
+   * Returns the approximate memory used by the length columns, in
+   * bytes.  It is 0 if lengths are read from Lucene.
+   */
+  public long ramBytesUsed() {
+    long bytes = 0;
+
+    for (int[] column : this.intColumns.values()) {
+      bytes += 4L * column.length;
+    }
+
+    for (PackedInts.Mutable column : this.packedColumns.values()) {
+      bytes += column.ramBytesUsed();
+    }
+
+    return bytes;
   }
 }
@@ -0,0 +1,297 @@
+/*
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.store.*;
+import org.apache.lucene.util.*;
+
+/**
+ *  A utility that exports a Lucene index into the read-only format
+ *  that {@link NativeIndex} memory-maps.  Run it to see a simple usage
+ *  message.  Only fields that are indexed with positions are exported;
+ *  deleted documents are left out of the inverted lists, exactly as
+ *  InvList does when it reads from Lucene.
+ */
+public class ExportIndex {
+
+  static String usage =
+    "Usage:  java " +
+    System.getProperty("sun.java.command") +
+    " -index INDEX_PATH -output NATIVE_INDEX_PATH\n\n" +
+    "Writes a native index for use with the nativeIndexPath parameter.\n";
+
+  public static void main (String[] args) throws IOException {
+
+    String indexPath = null;
+    String outputPath = null;
+
+    for (int i=0; i + 1 < args.length; i++) {
+      if ("-index".equals (args[i])) {
+        indexPath = args[++i];
+      } else if ("-output".equals (args[i])) {
+        outputPath = args[++i];
+      }
+    }
+
+    if ((indexPath == null) || (outputPath == null)) {
+      System.err.println (usage);
+      System.exit (1);
+    }
+
+    DirectoryReader reader =
+      DirectoryReader.open (FSDirectory.open (new File (indexPath)));
+    File dir = new File (outputPath);
+
+    if (! dir.isDirectory () && ! dir.mkdirs ()) {
+      System.err.println ("Error:  Can't create " + outputPath);
+      System.exit (1);
+    }
+
+    export (reader, dir);
+    reader.close ();
+  }
+
+  /**
+   *  Export an index.
+   *  @param reader The Lucene index.
+   *  @param dir The output directory.
+   *  @throws IOException Error reading the index or writing the output.
+   */
+  public static void export (DirectoryReader reader, File dir) throws IOException {
+
+    //  Find the fields that have positions.
+
+    List<String> fieldNames = new ArrayList<String> ();
+
+    for (FieldInfo fi : MultiFields.getMergedFieldInfos (reader)) {
+      if (fi.isIndexed () &&
+          (fi.getIndexOptions ().compareTo (
+             FieldInfo.IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) >= 0)) {
+        fieldNames.add (fi.name);
+      }
+    }
+
+    try (DataOutputStream meta = new DataOutputStream (
+           new BufferedOutputStream (new FileOutputStream (new File (dir, "meta"))))) {
+
+      meta.writeInt (NativeIndex.MAGIC);
+      meta.writeInt (NativeIndex.VERSION);
+      meta.writeLong (reader.getVersion ());
+      meta.writeInt (reader.maxDoc ());
+      meta.writeInt (reader.numDocs ());
+      meta.writeInt (fieldNames.size ());
+
+      for (String field : fieldNames) {
+        System.out.println ("Exporting field " + field);
+
+        exportPostings (reader, field, dir);
+        boolean hasLengths = exportLengths (reader, field, dir);
+
+        meta.writeUTF (field);
+        meta.writeInt (reader.getDocCount (field));
+        meta.writeLong (reader.getSumTotalTermFreq (field));
+        meta.writeBoolean (hasLengths);
+      }
+    }
+
+    exportExternalIds (reader, dir);
+  }
+
+  /**
+   *  Write the lexicon and inverted lists of a field.
+   */
+  private static void exportPostings (IndexReader reader, String field, File dir)
+    throws IOException {
+
+    Bits liveDocs = MultiFields.getLiveDocs (reader);
+    Terms terms = MultiFields.getTerms (reader, field);
+    NumericDocValues lengths = MultiDocValues.getNormValues (reader, field);
+
+    ByteArrayOutputStream termBytes = new ByteArrayOutputStream ();
+    IntArray termOffsets = new IntArray ();
+    IntArray dfs = new IntArray ();
+    IntArray ctfs = new IntArray ();
+    List<Long> postingsOffsets = new ArrayList<Long> ();
+    List<Long> blockMaxOffsets = new ArrayList<Long> ();
+    long postingsLength = 0;
+    long blockMaxLength = 0;
+
+    try (OutputStream post = new BufferedOutputStream (
+           new FileOutputStream (new File (dir, field + ".post")), 1 << 16);
+         DataOutputStream bmax = new DataOutputStream (new BufferedOutputStream (
+           new FileOutputStream (new File (dir, field + ".bmax")), 1 << 16))) {
+
+      if (terms != null) {
+        TermsEnum ithTerm = terms.iterator (null);
+        BytesRef term;
+
+        while ((term = ithTerm.next ()) != null) {
+          DocsAndPositionsEnum iList =
+            ithTerm.docsAndPositions (liveDocs, null, 0);
+          InvList invList = new InvList (field, iList, ithTerm.docFreq (),
+                                         ithTerm.totalTermFreq ());
+
+          //  Terms whose documents were all deleted are left out.
+
+          if (invList.df == 0) {
+            continue;
+          }
+
+          byte[] compressed = invList.compress ();
+
+          //  Keep each inverted list inside one mapped chunk if possible.
+
+          long chunkEnd =
+            (postingsLength / NativeIndex.POSTINGS_CHUNK + 1) * NativeIndex.POSTINGS_CHUNK;
+
+          if ((postingsLength + compressed.length > chunkEnd) &&
+              (compressed.length <= NativeIndex.POSTINGS_CHUNK)) {
+            byte[] padding = new byte[(int) (chunkEnd - postingsLength)];
+            post.write (padding);
+            postingsLength = chunkEnd;
+          }
+
+          termOffsets.add (termBytes.size ());
+          termBytes.write (term.bytes, term.offset, term.length);
+          dfs.add (invList.df);
+          ctfs.add (invList.ctf);
+          postingsOffsets.add (postingsLength);
+
+          post.write (compressed);
+          postingsLength += compressed.length;
+
+          //  Block-max metadata, with the same lengths that the native
+          //  index stores.  Fields without lengths get length 0, which
+          //  is a valid (loose) bound.
+
+          BlockMaxWand.BlockMax blockMax = new BlockMaxWand.BlockMax (invList.df);
+
+          for (int p = 0; p < invList.df; p++) {
+            int docid = invList.getDocid (p);
+            int length = (lengths == null) ? 0 : (int) lengths.get (docid);
+            blockMax.add (p, docid, invList.getTf (p), length);
+          }
+
+          blockMaxOffsets.add (blockMaxLength);
+
+          for (int block = 0; block < blockMax.lastDocid.length; block++) {
+            bmax.writeInt (blockMax.lastDocid[block]);
+            bmax.writeInt (blockMax.maxTf[block]);
+            bmax.writeInt (blockMax.minLength[block]);
+          }
+
+          blockMaxLength += blockMax.ramBytesUsed ();
+        }
+      }
+    }
+
+    termOffsets.add (termBytes.size ());
+    postingsOffsets.add (postingsLength);
+    blockMaxOffsets.add (blockMaxLength);
+
+    try (DataOutputStream lex = new DataOutputStream (
+           new BufferedOutputStream (new FileOutputStream (new File (dir, field + ".lex"))))) {
+      lex.writeInt (dfs.size ());
+      termOffsets.writeTo (lex);
+      dfs.writeTo (lex);
+      ctfs.writeTo (lex);
+
+      for (long offset : postingsOffsets) {
+        lex.writeLong (offset);
+      }
+
+      for (long offset : blockMaxOffsets) {
+        lex.writeLong (offset);
+      }
+
+      termBytes.writeTo (lex);
+    }
+  }
+
+  /**
+   *  Write the field lengths of a field.
+   *  @return True if the field has lengths.
+   */
+  private static boolean exportLengths (IndexReader reader, String field, File dir)
+    throws IOException {
+
+    NumericDocValues lengths = MultiDocValues.getNormValues (reader, field);
+
+    if (lengths == null) {
+      return false;
+    }
+
+    try (DataOutputStream len = new DataOutputStream (
+           new BufferedOutputStream (new FileOutputStream (new File (dir, field + ".len"))))) {
+      for (int docid = 0; docid < reader.maxDoc (); docid++) {
+        len.writeInt ((int) lengths.get (docid));
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   *  Write the external ids of all documents.  Deleted documents get
+   *  an empty id.
+   */
+  private static void exportExternalIds (IndexReader reader, File dir)
+    throws IOException {
+
+    Bits liveDocs = MultiFields.getLiveDocs (reader);
+    int maxDoc = reader.maxDoc ();
+    ByteArrayOutputStream idBytes = new ByteArrayOutputStream ();
+    IntArray offsets = new IntArray ();
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      offsets.add (idBytes.size ());
+
+      if ((liveDocs == null) || liveDocs.get (docid)) {
+        Document d = reader.document (docid);
+        idBytes.write (d.get ("externalId").getBytes (StandardCharsets.UTF_8));
+      }
+    }
+
+    offsets.add (idBytes.size ());
+
+    try (DataOutputStream ids = new DataOutputStream (
+           new BufferedOutputStream (new FileOutputStream (new File (dir, "externalIds"))))) {
+      ids.writeInt (maxDoc);
+      offsets.writeTo (ids);
+      idBytes.writeTo (ids);
+    }
+  }
+
+  /**
+   *  A growable array of ints.
+   */
+  private static class IntArray {
+    private int[] values = new int[1024];
+    private int size = 0;
+
+    void add (int value) {
+      if (this.size == this.values.length) {
+        this.values = Arrays.copyOf (this.values, 2 * this.size);
+      }
+
+      this.values[this.size++] = value;
+    }
+
+    int size () {
+      return this.size;
+    }
+
+    void writeTo (DataOutputStream out) throws IOException {
+      for (int i = 0; i < this.size; i++) {
+        out.writeInt (this.values[i]);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,235 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.*;
+
+/**
+ *  A read-only, memory-mapped column that maps internal docids to
+ *  external ids, so that an external id can be found without loading
+ *  (and decompressing) the document's stored fields.
+ *  <p>
+ *  The ids are stored in docid order, in blocks of BLOCK_SIZE ids.
+ *  Neighboring documents often have similar external ids (e.g.,
+ *  clueweb09-en0000-00-00000 and clueweb09-en0000-00-00001), so each
+ *  block is front-coded:  the first id is stored in full, and each
+ *  later id is stored as the length of the prefix that it shares with
+ *  the previous id, followed by the rest of its bytes.  An offsets
+ *  array gives the start of each block.
+ *  </p><p>
+ *  The file is written once by build, and is memory-mapped on later
+ *  runs.  Its format is:
+ *  </p>
+ *  <pre>
+ *    int MAGIC, int VERSION, long indexVersion, int maxDoc,
+ *    int maxIdLength, int nBlocks
+ *    int[nBlocks+1]   Block offsets, relative to the start of the blocks.
+ *    blocks           Per id:  VByte shared prefix length, VByte suffix
+ *                     length, suffix bytes (UTF-8).
+ *  </pre>
+ *  indexVersion is the version of the Lucene index that the column
+ *  was built from.  Deleted documents have an empty external id.
+ */
+public class ExternalIdColumn {
+
+  //  --------------- Constants and variables ---------------------
+
+  static final int MAGIC = 0x51454944;	// "QEID"
+
+  static final int VERSION = 2;
+
+  /**
+   *  The number of ids in a front-coded block.  Larger blocks are
+   *  smaller on disk but slower to decode.
+   */
+  static final int BLOCK_SIZE = 16;
+
+  private static final int HEADER_LENGTH = 28;
+
+  private long indexVersion;
+  private int maxDoc;
+  private int maxIdLength;
+  private IntBuffer blockOffsets;
+  private ByteBuffer blocks;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Open an external id column.
+   *  @param file A file that was written by build.
+   *  @throws IOException Error reading the file.
+   */
+  public ExternalIdColumn (File file) throws IOException {
+
+    ByteBuffer b;
+
+    try (RandomAccessFile raf = new RandomAccessFile (file, "r");
+         FileChannel channel = raf.getChannel ()) {
+      b = channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ());
+    }
+
+    if ((b.getInt (0) != MAGIC) || (b.getInt (4) != VERSION)) {
+      throw new IOException ("Not an external id column: " + file);
+    }
+
+    this.indexVersion = b.getLong (8);
+    this.maxDoc = b.getInt (16);
+    this.maxIdLength = b.getInt (20);
+
+    int nBlocks = b.getInt (24);
+    int blocksStart = HEADER_LENGTH + 4 * (nBlocks + 1);
+
+    b.position (HEADER_LENGTH);
+    ByteBuffer offsets = b.slice ();
+    offsets.limit (4 * (nBlocks + 1));
+    this.blockOffsets = offsets.asIntBuffer ();
+
+    b.position (blocksStart);
+    this.blocks = b.slice ();
+  }
+
+  /**
+   *  Write the external id column of an index.
+   *  @param reader The Lucene index.
+   *  @param file The output file.  It is written under a temporary
+   *         name and then renamed, so a partial file is never opened.
+   *  @throws IOException Error reading the index or writing the file.
+   */
+  public static void build (DirectoryReader reader, File file) throws IOException {
+
+    Set<String> fieldsToLoad = Collections.singleton ("externalId");
+    int maxDoc = reader.maxDoc ();
+    int nBlocks = (maxDoc + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    int[] offsets = new int[nBlocks + 1];
+    int maxIdLength = 0;
+
+    ByteArrayOutputStream blockBytes = new ByteArrayOutputStream ();
+    byte[] previous = new byte[0];
+
+    //  Read the ids one leaf (segment) at a time, so that each stored
+    //  document is loaded from its own leaf.
+
+    List<AtomicReaderContext> leaves = reader.leaves ();
+    int leafIndex = -1;
+    AtomicReader leaf = null;
+    Bits liveDocs = null;
+    int docBase = 0;
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+
+      while ((leaf == null) || (docid - docBase >= leaf.maxDoc ())) {
+        AtomicReaderContext context = leaves.get (++leafIndex);
+
+        leaf = context.reader ();
+        liveDocs = leaf.getLiveDocs ();
+        docBase = context.docBase;
+      }
+
+      byte[] id = new byte[0];
+
+      if ((liveDocs == null) || liveDocs.get (docid - docBase)) {
+        Document d = leaf.document (docid - docBase, fieldsToLoad);
+        id = d.get ("externalId").getBytes (StandardCharsets.UTF_8);
+      }
+
+      //  The first id of a block is not front-coded.
+
+      int prefix = 0;
+
+      if (docid % BLOCK_SIZE == 0) {
+        offsets[docid / BLOCK_SIZE] = blockBytes.size ();
+      } else {
+        int n = Math.min (previous.length, id.length);
+
+        while ((prefix < n) && (previous[prefix] == id[prefix]))
+          prefix++;
+      }
+
+      VByte.write (blockBytes, prefix);
+      VByte.write (blockBytes, id.length - prefix);
+      blockBytes.write (id, prefix, id.length - prefix);
+
+      maxIdLength = Math.max (maxIdLength, id.length);
+      previous = id;
+    }
+
+    offsets[nBlocks] = blockBytes.size ();
+
+    File tmp = new File (file.getPath () + ".tmp");
+
+    try (DataOutputStream out = new DataOutputStream (
+           new BufferedOutputStream (new FileOutputStream (tmp)))) {
+      out.writeInt (MAGIC);
+      out.writeInt (VERSION);
+      out.writeLong (reader.getVersion ());
+      out.writeInt (maxDoc);
+      out.writeInt (maxIdLength);
+      out.writeInt (nBlocks);
+
+      for (int offset : offsets) {
+        out.writeInt (offset);
+      }
+
+      blockBytes.writeTo (out);
+    }
+
+    if (! tmp.renameTo (file)) {
+      tmp.delete ();
+      throw new IOException ("Unable to write " + file);
+    }
+  }
+
+  /**
+   *  Get the external id of a document.  This method is thread-safe.
+   *  @param docid An internal document id.
+   *  @return The external id, or an empty string for deleted documents.
+   */
+  public String get (int docid) {
+
+    if ((docid < 0) || (docid >= this.maxDoc)) {
+      throw new IllegalArgumentException ("Bad internal document id " + docid);
+    }
+
+    byte[] id = new byte[this.maxIdLength];
+    int length = 0;
+
+    //  Decode the block up to the requested id.  Each call uses its own
+    //  view of the mapped buffer, so several threads can share it.
+
+    ByteBuffer cursor = this.blocks.duplicate ();
+    cursor.position (this.blockOffsets.get (docid / BLOCK_SIZE));
+
+    for (int i = docid % BLOCK_SIZE; i >= 0; i--) {
+      int prefix = VByte.read (cursor);
+      int suffix = VByte.read (cursor);
+
+      cursor.get (id, prefix, suffix);
+      length = prefix + suffix;
+    }
+
+    return new String (id, 0, length, StandardCharsets.UTF_8);
+  }
+
+  /**
+   *  Get the version of the Lucene index that the column was built
+   *  from.
+   */
+  public long getIndexVersion () {
+    return this.indexVersion;
+  }
+
+  /**
+   *  Get the number of document ids, including deleted documents.
+   */
+  public int getMaxDoc () {
+    return this.maxDoc;
+  }
+
+}
@@ -0,0 +1,211 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.*;
+
+/**
+ *  An in-memory hash index from external document ids to internal
+ *  docids.  It is built from the terms dictionary of the externalId
+ *  field, so it never reads stored documents; documents that do not
+ *  have an external id are not in it.  The external ids are stored as
+ *  UTF-8 bytes in one array, and the table is an open-addressing
+ *  (linear probing) table of their entry numbers.  Each slot also
+ *  records the hash of its external id, so a probe only compares a
+ *  candidate's bytes when the hashes match.  This is much smaller than
+ *  a map of strings.
+ */
+public class ExternalIdIndex {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final int EMPTY = -1;
+
+  /**
+   *  The entries, i.e., the distinct external ids and their docids.
+   *  The bytes of entry i are pool[starts[i]] to pool[starts[i+1]-1].
+   */
+  private int size = 0;
+  private byte[] pool = new byte[1024];
+  private int[] starts = new int[1024];
+  private int[] entryDocids = new int[1024];
+
+  /**
+   *  The hash table of entry numbers.
+   */
+  private int mask;
+  private int[] hashes;
+  private int[] entries;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Build the index over the live documents of the Lucene index.  If
+   *  two documents have the same external id, the smaller docid wins.
+   *  @throws IOException Error accessing the index.
+   */
+  public ExternalIdIndex () throws IOException {
+
+    IndexReader reader = Idx.INDEXREADER;
+
+    //  Visit the leaves in docid order, checking each leaf's own live
+    //  docs.  The first live document of each term is its docid.
+
+    for (AtomicReaderContext leaf : reader.leaves ()) {
+      Terms terms = leaf.reader ().terms ("externalId");
+
+      if (terms == null) {
+        continue;
+      }
+
+      Bits liveDocs = leaf.reader ().getLiveDocs ();
+      TermsEnum termsEnum = terms.iterator (null);
+      DocsEnum docsEnum = null;
+      BytesRef term;
+
+      while ((term = termsEnum.next ()) != null) {
+        docsEnum = termsEnum.docs (liveDocs, docsEnum, DocsEnum.FLAG_NONE);
+
+        int i = docsEnum.nextDoc ();
+
+        if (i != DocIdSetIterator.NO_MORE_DOCS) {
+          this.addEntry (term, leaf.docBase + i);
+        }
+      }
+    }
+
+    int capacity = Integer.highestOneBit (Math.max (2 * this.size, 2) - 1) << 1;
+
+    this.mask = capacity - 1;
+    this.hashes = new int[capacity];
+    this.entries = new int[capacity];
+    Arrays.fill (this.entries, EMPTY);
+
+    for (int e = 0; e < this.size; e++) {
+      int start = this.starts[e];
+      int length = this.starts[e + 1] - start;
+      int hash = hash (this.pool, start, length);
+      int slot = this.find (this.pool, start, length, hash);
+
+      if (this.entries[slot] == EMPTY) {
+        this.hashes[slot] = hash;
+        this.entries[slot] = e;
+      }
+    }
+  }
+
+  /**
+   *  Append an external id and its docid to the entries.
+   */
+  private void addEntry (BytesRef term, int docid) {
+
+    if (this.size + 2 > this.starts.length) {
+      this.starts = ArrayUtil.grow (this.starts, this.size + 2);
+      this.entryDocids = ArrayUtil.grow (this.entryDocids, this.size + 1);
+    }
+
+    int start = this.starts[this.size];
+
+    if (start + term.length > this.pool.length) {
+      this.pool = ArrayUtil.grow (this.pool, start + term.length);
+    }
+
+    System.arraycopy (term.bytes, term.offset, this.pool, start, term.length);
+    this.entryDocids[this.size] = docid;
+    this.size++;
+    this.starts[this.size] = start + term.length;
+  }
+
+  /**
+   *  Hash the bytes of an external id, spreading the bits so that ids
+   *  that differ only in their last characters do not fill
+   *  neighboring slots.
+   */
+  private static int hash (byte[] bytes, int offset, int length) {
+
+    int h = 0;
+
+    for (int i = offset; i < offset + length; i++) {
+      h = 31 * h + bytes[i];
+    }
+
+    h *= 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   *  Find the slot of an external id, or the empty slot where it
+   *  would be inserted.
+   */
+  private int find (byte[] bytes, int offset, int length, int hash) {
+
+    int slot = hash & this.mask;
+
+    while (this.entries[slot] != EMPTY) {
+      if ((this.hashes[slot] == hash) &&
+          this.entryEquals (this.entries[slot], bytes, offset, length)) {
+        break;
+      }
+
+      slot = (slot + 1) & this.mask;
+    }
+
+    return slot;
+  }
+
+  /**
+   *  Indicates whether an entry's external id has the given bytes.
+   */
+  private boolean entryEquals (int e, byte[] bytes, int offset, int length) {
+
+    int start = this.starts[e];
+
+    if (this.starts[e + 1] - start != length) {
+      return false;
+    }
+
+    for (int i = 0; i < length; i++) {
+      if (this.pool[start + i] != bytes[offset + i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   *  Get the internal docid of a document.
+   *  @param externalId An external document id.
+   *  @return The internal docid, or -1 if there is no such document.
+   */
+  public int get (String externalId) {
+
+    BytesRef b = new BytesRef (externalId);
+    int e = this.entries[this.find (b.bytes, b.offset, b.length,
+                                    hash (b.bytes, b.offset, b.length))];
+
+    return (e == EMPTY) ? EMPTY : this.entryDocids[e];
+  }
+
+  /**
+   *  Get the internal docids of a list of documents.
+   *  @param externalIds External document ids.
+   *  @return The internal docids, in the same order.  Documents that
+   *          do not exist have docid -1.
+   */
+  public int[] get (List<String> externalIds) {
+
+    int[] result = new int[externalIds.size ()];
+
+    for (int i = 0; i < result.length; i++) {
+      result[i] = this.get (externalIds.get (i));
+    }
+
+    return result;
+  }
+
+}
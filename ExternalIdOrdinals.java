@@ -0,0 +1,115 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ *  A table that maps each internal docid to the rank of its external
+ *  id in String.compareTo order.  Results are printed with score ties
+ *  broken by external id, so comparing two ordinals gives the same
+ *  answer as comparing the two external id strings, without
+ *  materializing them.  Documents with the same external id have the
+ *  same ordinal.
+ *  <p>
+ *  The table is built once per index and saved as int MAGIC, int
+ *  VERSION, the long version of the Lucene index, and int maxDoc,
+ *  followed by int[maxDoc] ordinals.
+ *  </p>
+ */
+public class ExternalIdOrdinals {
+
+  //  --------------- Constants and variables ---------------------
+
+  static final int MAGIC = 0x5145494f;	// "QEIO"
+
+  static final int VERSION = 1;
+
+  private static final int HEADER_LENGTH = 20;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Compute the ordinals of every document in the index, and save
+   *  them.
+   *  @param file The output file.  It is written under a temporary
+   *         name and then renamed, so a partial file is never loaded.
+   *  @throws IOException Error accessing the index or writing the file.
+   */
+  public static void build (File file) throws IOException {
+
+    int maxDoc = Idx.INDEXREADER.maxDoc ();
+    String[] ids = new String[maxDoc];
+
+    for (int docid = 0; docid < maxDoc; docid++) {
+      String id = Idx.getExternalDocid (docid);
+      ids[docid] = (id == null) ? "" : id;
+    }
+
+    //  Sort a copy of the ids and remove duplicates.  The ordinal of a
+    //  document is the position of its id in the sorted copy.
+
+    String[] sorted = ids.clone ();
+    Arrays.sort (sorted);
+
+    int unique = 0;
+
+    for (int i = 0; i < sorted.length; i++) {
+      if ((unique == 0) || ! sorted[i].equals (sorted[unique - 1])) {
+        sorted[unique++] = sorted[i];
+      }
+    }
+
+    File tmp = new File (file.getPath () + ".tmp");
+
+    try (DataOutputStream out = new DataOutputStream (
+           new BufferedOutputStream (new FileOutputStream (tmp)))) {
+      out.writeInt (MAGIC);
+      out.writeInt (VERSION);
+      out.writeLong (Idx.getIndexVersion ());
+      out.writeInt (maxDoc);
+
+      for (int docid = 0; docid < maxDoc; docid++) {
+        out.writeInt (Arrays.binarySearch (sorted, 0, unique, ids[docid]));
+      }
+    }
+
+    if (! tmp.renameTo (file)) {
+      tmp.delete ();
+      throw new IOException ("Unable to write " + file);
+    }
+  }
+
+  /**
+   *  Read a table that was written by build.
+   *  @param file The table file.
+   *  @param indexVersion The version of the open Lucene index.
+   *  @return The ordinal of each docid, or null if the table was
+   *          built from a different index or commit.
+   *  @throws IOException Error reading the file.
+   */
+  public static int[] load (File file, long indexVersion) throws IOException {
+
+    try (RandomAccessFile raf = new RandomAccessFile (file, "r");
+         FileChannel channel = raf.getChannel ()) {
+      ByteBuffer b = channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ());
+
+      if ((b.getInt (0) != MAGIC) || (b.getInt (4) != VERSION)) {
+        throw new IOException ("Not an external id ordinal table: " + file);
+      }
+
+      if (b.getLong (8) != indexVersion) {
+        return null;
+      }
+
+      int[] ordinals = new int[b.getInt (16)];
+
+      b.position (HEADER_LENGTH);
+      b.asIntBuffer ().get (ordinals);
+      return ordinals;
+    }
+  }
+
+}
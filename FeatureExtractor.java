@@ -63,13 +63,12 @@ public class FeatureExtractor {
                         ArrayList<Integer> relevanceList) throws IOException {
         Double [] scores = new Double[18];
         qidList.add(qid);
+        int[] docIds = Idx.getInternalDocids(testDocs);
         for (int i = 0; i < testDocs.size(); i++) {
             String externalId = testDocs.get(i);
-            int docId;
-            try {
-                docId = Idx.getInternalDocid(externalId);
-            } catch (Exception e) {
-                e.printStackTrace();
+            int docId = docIds[i];
+            if (docId < 0) {
+                System.err.println("External id not found: " + externalId);
                 continue;
             }
             // f1: Spam score for d (read from index)
@@ -254,8 +253,7 @@ public class FeatureExtractor {
             }
             if (!matched) {
                 /* Indri default score */
-                InvList invList = new InvList(queryTerm, field);
-                double ctf = invList.ctf;
+                double ctf = TermStats.getLiveCtf(field, queryTerm);
                 double qiUnderC = ctf / sumDocLen;
                 double indriTermScore = (1- lambda) * ((mu * qiUnderC)/(docLen + mu))
                         + lambda * qiUnderC;
@@ -3,10 +3,10 @@
  */
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.*;
-import org.apache.lucene.search.*;
 import org.apache.lucene.store.FSDirectory;
 
 /**
@@ -18,6 +18,14 @@ public class Idx {
 
   public static IndexReader INDEXREADER=null;
   private static DocLengthStore DOCLENGTHSTORE;
+  private static NativeIndex NATIVEINDEX=null;
+  private static PhraseIndex PHRASEINDEX=null;
+  private static ExternalIdColumn EXTERNALIDS=null;
+  private static ExternalIdIndex EXTERNALIDINDEX=null;
+  private static int[] EXTERNALIDORDINALS=null;
+  private static int[] LEAFDOCBASES=null;
+  private static Map<String, double[]> BM25LENGTHNORMS =
+    new ConcurrentHashMap<String, double[]> ();
 
   //  --------------- Methods ---------------------------------------
 
@@ -40,6 +48,8 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static int getDocCount (String fieldName) throws IOException {
+    if (Idx.NATIVEINDEX != null)
+      return Idx.NATIVEINDEX.getDocCount (fieldName);
     return Idx.INDEXREADER.getDocCount (fieldName);
   }
 
@@ -50,6 +60,10 @@ public class Idx {
    * @throws IOException Error accessing the Lucene index.
    */
   public static String getExternalDocid(int iid) throws IOException {
+    if (Idx.NATIVEINDEX != null)
+      return Idx.NATIVEINDEX.getExternalDocid(iid);
+    if (Idx.EXTERNALIDS != null)
+      return Idx.EXTERNALIDS.get(iid);
     Document d = Idx.INDEXREADER.document(iid);
     String eid = d.get("externalId");
     return eid;
@@ -63,6 +77,8 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static int getFieldLength (String fieldName, int docid) throws IOException {
+    if (Idx.NATIVEINDEX != null)
+      return Idx.NATIVEINDEX.getFieldLength (fieldName, docid);
     return (int) Idx.DOCLENGTHSTORE.getDocLength (fieldName, docid);
   }
 
@@ -77,26 +93,103 @@ public class Idx {
   public static int getInternalDocid(String externalId)
     throws Exception {
 
-    Query q = new TermQuery(new Term("externalId", externalId));
+    int docid = Idx.getExternalIdIndex().get(externalId);
 
-    IndexSearcher searcher = new IndexSearcher(Idx.INDEXREADER);
-    TopScoreDocCollector collector = TopScoreDocCollector.create(1, false);
-    searcher.search(q, collector);
-    ScoreDoc[] hits = collector.topDocs().scoreDocs;
-
-    if (hits.length < 1) {
+    if (docid < 0) {
       throw new Exception("External id not found.");
     } else {
-      return hits[0].doc;
+      return docid;
     }
   }
 
+  /**
+   * Get the internal document ids of a list of documents specified by
+   * their external ids.
+   * @param externalIds External document ids.
+   * @return The internal docids, in the same order.  Documents that
+   *         do not exist have docid -1.
+   * @throws IOException Error accessing the Lucene index.
+   */
+  public static int[] getInternalDocids(List<String> externalIds)
+    throws IOException {
+    return Idx.getExternalIdIndex().get(externalIds);
+  }
+
+  /**
+   * Get the external id to internal docid index, building it on first
+   * use.
+   */
+  private static synchronized ExternalIdIndex getExternalIdIndex()
+    throws IOException {
+    if (Idx.EXTERNALIDINDEX == null)
+      Idx.EXTERNALIDINDEX = new ExternalIdIndex();
+    return Idx.EXTERNALIDINDEX;
+  }
+
+  /**
+   *  Get the external id ordinals that were loaded by
+   *  initializeExternalIdOrdinals.  Comparing the ordinals of two
+   *  documents gives the same result as comparing their external ids.
+   *  @return The ordinal of each docid, or null if there are none.
+   */
+  public static int[] getExternalIdOrdinals () {
+    return Idx.EXTERNALIDORDINALS;
+  }
+
+  /**
+   *  Get the first docid of each leaf (segment) of the index.  A
+   *  leaf's local docid plus its doc base is its internal docid.
+   *  @return The doc bases, in leaf order.  The array must not be
+   *          changed.
+   */
+  public static int[] getLeafDocBases () {
+    return Idx.LEAFDOCBASES;
+  }
+
+  /**
+   *  Get the version of the open index commit.  Files that are built
+   *  from the index (native index, external id column, ordinal table,
+   *  phrase index) record it, so that a file that was built from a
+   *  different index or commit is not used.
+   *  @return The version of the index.
+   */
+  public static long getIndexVersion () {
+    return ((DirectoryReader) Idx.INDEXREADER).getVersion ();
+  }
+
+  /**
+   *  Get the leaf (segment) of the index that contains a document.
+   *  @param docid The internal docid in the lucene index.
+   *  @return The index of the leaf in INDEXREADER.leaves ().
+   */
+  public static int getLeaf (int docid) {
+    return ReaderUtil.subIndex (docid, Idx.LEAFDOCBASES);
+  }
+
+  /**
+   *  Get the native index that was opened by initializeNativeIndex.
+   *  @return The native index, or null if there is none.
+   */
+  public static NativeIndex getNativeIndex () {
+    return Idx.NATIVEINDEX;
+  }
+
+  /**
+   *  Get the phrase index that was opened by initializePhraseIndex.
+   *  @return The phrase index, or null if there is none.
+   */
+  public static PhraseIndex getPhraseIndex () {
+    return Idx.PHRASEINDEX;
+  }
+
   /**
    *  Get the total number of documents in the corpus.
    *  @return The total number of documents.
    *  @throws IOException Error accessing the Lucene index.
    */
   public static long getNumDocs () throws IOException {
+    if (Idx.NATIVEINDEX != null)
+      return Idx.NATIVEINDEX.getNumDocs();
     return Idx.INDEXREADER.numDocs();
   }
 
@@ -110,9 +203,74 @@ public class Idx {
    */
   public static long getSumOfFieldLengths (String fieldName)
     throws IOException {
+    if (Idx.NATIVEINDEX != null)
+      return Idx.NATIVEINDEX.getSumOfFieldLengths (fieldName);
     return Idx.INDEXREADER.getSumTotalTermFreq (fieldName);
   }
 
+  /**
+   *  Get the BM25 length normalization of every document, i.e.,
+   *  k1 * ((1-b) + b * docLen / avgDocLen), for a field.  The column
+   *  is kept until the index is reopened, and uses 8 bytes per
+   *  document.  A column is built the first time that a query scores
+   *  the field; afterwards query threads read it without locking.
+   *  @param fieldName The field name.
+   *  @param k1 The BM25 k1 parameter.
+   *  @param b The BM25 b parameter.
+   *  @return The normalization of each docid.  The array must not be
+   *          changed.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static double[] getBM25LengthNorms (String fieldName,
+                                             double k1, double b)
+    throws IOException {
+
+    String key = fieldName + "|" + k1 + "|" + b;
+    double[] norms = Idx.BM25LENGTHNORMS.get (key);
+
+    if (norms != null) {
+      return norms;
+    }
+
+    synchronized (Idx.BM25LENGTHNORMS) {
+      norms = Idx.BM25LENGTHNORMS.get (key);
+
+      if (norms == null) {
+        norms = Idx.computeBM25LengthNorms (fieldName, k1, b);
+        Idx.BM25LENGTHNORMS.put (key, norms);
+      }
+    }
+
+    return norms;
+  }
+
+  /**
+   *  Compute a BM25 length normalization column.
+   */
+  private static double[] computeBM25LengthNorms (String fieldName,
+                                                  double k1, double b)
+    throws IOException {
+
+    double avgDocLen = (double) Idx.getSumOfFieldLengths (fieldName) /
+                       (double) Idx.getDocCount (fieldName);
+    double[] norms = new double[Idx.INDEXREADER.maxDoc ()];
+
+    for (int docid = 0; docid < norms.length; docid++) {
+      double docLen = Idx.getFieldLength (fieldName, docid);
+      norms[docid] = k1 * ((1-b)+b*docLen/avgDocLen);
+    }
+
+    return norms;
+  }
+
+  /**
+   *  Get the memory used by preloaded document length columns.
+   *  @return The number of bytes, or 0 if lengths are not preloaded.
+   */
+  public static long getFieldLengthBytes () {
+    return Idx.DOCLENGTHSTORE.ramBytesUsed ();
+  }
+
   /**
    *  Open a Lucene index and the associated DocLengthStore.
    *  @param indexPath A directory that contains a Lucene index.
@@ -121,6 +279,20 @@ public class Idx {
    */
   public static void initialize (String indexPath)
     throws IllegalArgumentException, IOException {
+    Idx.initialize (indexPath, DocLengthStore.Columns.NONE);
+  }
+
+  /**
+   *  Open a Lucene index and the associated DocLengthStore.
+   *  @param indexPath A directory that contains a Lucene index.
+   *  @param lengthColumns Whether document lengths are preloaded into
+   *         columns, and how they are stored.
+   *  @throws IllegalArgumentException Unable to open the index.
+   *  @throws IOException Error accessing the index.
+   */
+  public static void initialize (String indexPath,
+                                 DocLengthStore.Columns lengthColumns)
+    throws IllegalArgumentException, IOException {
 
     //  Open the Lucene index
 
@@ -130,15 +302,137 @@ public class Idx {
     if (Idx.INDEXREADER == null) {
       throw new IllegalArgumentException ("Unable to open the index.");
     }
+
+    List<AtomicReaderContext> leaves = Idx.INDEXREADER.leaves ();
+
+    Idx.LEAFDOCBASES = new int[leaves.size ()];
+
+    for (int i = 0; i < leaves.size (); i++) {
+      Idx.LEAFDOCBASES[i] = leaves.get (i).docBase;
+    }
+
+    TermStats.clear ();
+    InvListCache.clear ();
+    ScoreBounds.clear ();
+    Idx.BM25LENGTHNORMS.clear ();
+    Idx.NATIVEINDEX = null;
+    Idx.EXTERNALIDS = null;
+    Idx.EXTERNALIDINDEX = null;
+    Idx.EXTERNALIDORDINALS = null;
+    Idx.PHRASEINDEX = null;
   
     //  Lucene doesn't store field lengths the way that we want them,
     //  so we have our own document length store.
 
-    Idx.DOCLENGTHSTORE = new DocLengthStore (Idx.INDEXREADER);
+    Idx.DOCLENGTHSTORE = new DocLengthStore (Idx.INDEXREADER, lengthColumns);
   
     if (Idx.DOCLENGTHSTORE == null) {
       throw new IllegalArgumentException ("Unable to open the document length store.");
     }
   }
 
+  /**
+   *  Open the external id column of the index, building it first if
+   *  the file does not exist yet.  Afterwards getExternalDocid reads
+   *  the column instead of loading stored documents.  initialize must
+   *  be called first.
+   *  @param path The column file.
+   *  @throws IOException Error accessing the index or the column.
+   */
+  public static void initializeExternalIdColumn (String path)
+    throws IOException {
+
+    File file = new File (path);
+
+    if (! file.exists ()) {
+      ExternalIdColumn.build ((DirectoryReader) Idx.INDEXREADER, file);
+    }
+
+    ExternalIdColumn column = new ExternalIdColumn (file);
+
+    if ((column.getMaxDoc () != Idx.INDEXREADER.maxDoc ()) ||
+        (column.getIndexVersion () != Idx.getIndexVersion ())) {
+      throw new IllegalArgumentException
+        ("The external id column does not match the Lucene index.");
+    }
+
+    Idx.EXTERNALIDS = column;
+  }
+
+  /**
+   *  Load the external id ordinal table of the index, building it
+   *  first if the file does not exist yet.  initialize, and
+   *  initializeExternalIdColumn or initializeNativeIndex if they are
+   *  used, must be called first, because building the table reads
+   *  every external id.
+   *  @param path The ordinal table file.
+   *  @throws IOException Error accessing the index or the table.
+   */
+  public static void initializeExternalIdOrdinals (String path)
+    throws IOException {
+
+    File file = new File (path);
+
+    if (! file.exists ()) {
+      ExternalIdOrdinals.build (file);
+    }
+
+    int[] ordinals = ExternalIdOrdinals.load (file, Idx.getIndexVersion ());
+
+    if ((ordinals == null) || (ordinals.length != Idx.INDEXREADER.maxDoc ())) {
+      throw new IllegalArgumentException
+        ("The external id ordinals do not match the Lucene index.");
+    }
+
+    Idx.EXTERNALIDORDINALS = ordinals;
+  }
+
+  /**
+   *  Open a native index that was exported from the Lucene index by
+   *  ExportIndex.  Afterwards, inverted lists, field lengths, external
+   *  ids, and corpus statistics are read from the native index instead
+   *  of Lucene.  Term vectors and other stored attributes are still
+   *  read from Lucene, so initialize must be called first.
+   *  @param nativeIndexPath A directory that contains a native index.
+   *  @throws IOException Error accessing the native index.
+   */
+  public static void initializeNativeIndex (String nativeIndexPath)
+    throws IOException {
+
+    NativeIndex nativeIndex = new NativeIndex (nativeIndexPath);
+
+    if ((nativeIndex.getMaxDoc () != Idx.INDEXREADER.maxDoc ()) ||
+        (nativeIndex.getIndexVersion () != Idx.getIndexVersion ())) {
+      throw new IllegalArgumentException
+        ("The native index does not match the Lucene index.");
+    }
+
+    Idx.NATIVEINDEX = nativeIndex;
+    InvListCache.clear ();
+    ScoreBounds.clear ();
+    Idx.BM25LENGTHNORMS.clear ();
+  }
+
+  /**
+   *  Open a phrase index that was built from the Lucene index by
+   *  PhraseIndex.  Afterwards the query optimizer reads the inverted
+   *  lists of the phrases that it contains instead of computing
+   *  #NEAR/1 of their terms.  initialize must be called first.
+   *  @param path The phrase index file.
+   *  @throws IOException Error reading the phrase index.
+   */
+  public static void initializePhraseIndex (String path)
+    throws IOException {
+
+    PhraseIndex phraseIndex = new PhraseIndex (new File (path));
+
+    if ((phraseIndex.getMaxDoc () != Idx.INDEXREADER.maxDoc ()) ||
+        (phraseIndex.getIndexVersion () != Idx.getIndexVersion ())) {
+      throw new IllegalArgumentException
+        ("The phrase index does not match the Lucene index.");
+    }
+
+    Idx.PHRASEINDEX = phraseIndex;
+  }
+
 }
@@ -0,0 +1,314 @@
+/**
+ * Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  MaxScore evaluation of Indri #AND and #WAND queries.  Only the top
+ *  k documents of a query are reported, so a document whose score can
+ *  not reach the k'th best score found so far does not need to be
+ *  scored.
+ *  <p>
+ *  An Indri #AND is a weighted geometric mean, so in log space a
+ *  document's score is a weighted sum of its arguments' log scores.
+ *  Every argument has two upper bounds:  one for documents that it
+ *  matches, and one for documents that it does not match, which only
+ *  get its default (smoothed) score.  Arguments are sorted by the
+ *  difference between the two bounds.  The arguments with the
+ *  smallest differences are non-essential:  a document that matches
+ *  none of the other, essential, arguments can not reach the
+ *  threshold, so candidate documents are only taken from the
+ *  essential arguments.  The non-essential arguments are just advanced
+ *  to each candidate, and a candidate is only scored if the bound for
+ *  the arguments that it actually matches can reach the threshold.
+ *  </p><p>
+ *  Candidates that are scored are scored by the query operators
+ *  themselves, so the top k documents and their scores are identical
+ *  to document-at-a-time evaluation.  The maximum score of a term's
+ *  inverted list is kept in the ScoreBounds cache across queries.
+ *  </p><p>
+ *  The query and its nested #AND and #WAND operators may only have
+ *  #SCORE, #AND, and #WAND arguments, which covers both the bag of
+ *  words queries and the expanded queries of pseudo relevance
+ *  feedback.
+ *  </p>
+ */
+public class IndriMaxScore {
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     *  Indicates whether a query can be evaluated by MaxScore.
+     *  @param q An optimized query.
+     *  @param r The retrieval model.
+     *  @return True if the query is an Indri #AND or #WAND that only
+     *          contains #SCORE, #AND, and #WAND operators.
+     */
+    public static boolean canEvaluate(Qry q, RetrievalModel r) {
+
+        //  Default scores are undefined for empty fields if mu is 0.
+
+        if (!(r instanceof RetrievalModelIndri) ||
+            !(((RetrievalModelIndri) r).getMu() > 0))
+            return false;
+
+        return ((q instanceof QrySopAnd) || (q instanceof QrySopWAnd)) &&
+               isBounded(q);
+    }
+
+    /**
+     *  Indicates whether bounds can be computed for a query operator.
+     */
+    private static boolean isBounded(Qry q) {
+
+        if (q instanceof QrySopScore)
+            return true;
+
+        if (!(q instanceof QrySopAnd) && !(q instanceof QrySopWAnd))
+            return false;
+
+        if (q.args.size() == 0)
+            return false;
+
+        for (Qry q_i : q.args) {
+            if (!isBounded(q_i))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     *  Evaluate a query and return its top k documents.
+     *  @param q A query that canEvaluate accepts.  It must not be
+     *         initialized yet.
+     *  @param r The Indri retrieval model.
+     *  @param k The number of documents that will be reported.
+     *  @return The top k documents, sorted by score and external id.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public static ScoreList evaluate(Qry q, RetrievalModelIndri r, int k)
+            throws IOException {
+
+        //  getMaxScore reads each term's whole inverted list.
+
+        setMaterialize(q);
+        q.initialize(r);
+
+        int n = q.args.size();
+        double[] unsortedMatchBounds = new double[n];
+        double[] unsortedDefaultBounds = new double[n];
+        double[] unsortedGaps = new double[n];
+        int[] order = new int[n];
+        double baseBound = 0.0;
+
+        //  A match can lower a document's score (gap < 0), but a
+        //  document may also not match, so only increases are counted.
+
+        for (int i = 0; i < n; i++) {
+            double exponent = getExponent(q, i);
+            double[] bounds = getLogBounds((QrySop) q.args.get(i), r);
+
+            unsortedMatchBounds[i] = exponent * bounds[0];
+            unsortedDefaultBounds[i] = exponent * bounds[1];
+            unsortedGaps[i] =
+                Math.max(unsortedMatchBounds[i] - unsortedDefaultBounds[i], 0.0);
+            baseBound += unsortedDefaultBounds[i];
+        }
+
+        //  Sort the arguments by gap, keeping ties in query order, and
+        //  store them in that order so that the loop below indexes the
+        //  arrays directly.  Queries are short, so insertion sort is fast.
+
+        for (int j = 0; j < n; j++) {
+            int m = j - 1;
+
+            while ((m >= 0) && (unsortedGaps[order[m]] > unsortedGaps[j])) {
+                order[m + 1] = order[m];
+                m--;
+            }
+
+            order[m + 1] = j;
+        }
+
+        QrySop[] args = new QrySop[n];
+        double[] matchBounds = new double[n];
+        double[] defaultBounds = new double[n];
+        double[] gaps = new double[n];
+
+        for (int i = 0; i < n; i++) {
+            args[i] = (QrySop) q.args.get(order[i]);
+            matchBounds[i] = unsortedMatchBounds[order[i]];
+            defaultBounds[i] = unsortedDefaultBounds[order[i]];
+            gaps[i] = unsortedGaps[order[i]];
+        }
+
+        //  Non-essential arguments are taken from the start of args.
+
+        TopKCollector topK = new TopKCollector(k);
+        double threshold = Double.NaN;
+        int nonEssential = 0;
+
+        while (true) {
+
+            //  Move arguments to the non-essential set while a document
+            //  that matches only them can not reach the threshold.
+
+            if (topK.getThreshold() != threshold) {
+                threshold = topK.getThreshold();
+
+                double logThreshold = Math.log(threshold);
+                double bound = baseBound;
+
+                for (int i = 0; i < nonEssential; i++)
+                    bound += gaps[i];
+
+                while ((nonEssential < n) &&
+                       ScoreBounds.isBelow(bound + gaps[nonEssential], logThreshold)) {
+                    bound += gaps[nonEssential];
+                    nonEssential++;
+                }
+            }
+
+            if (nonEssential == n)
+                break;
+
+            //  The candidate is the next document of an essential argument.
+
+            int docid = Integer.MAX_VALUE;
+
+            for (int i = nonEssential; i < n; i++) {
+                QrySop q_i = args[i];
+
+                if (q_i.docIteratorHasMatch(r))
+                    docid = Math.min(docid, q_i.docIteratorGetMatch());
+            }
+
+            if (docid == Integer.MAX_VALUE)
+                break;
+
+            //  Bound the candidate's score by the arguments that match it.
+            //  Advancing the query moves the non-essential arguments to
+            //  the candidate and clears the query's cached match.
+
+            q.docIteratorAdvanceTo(docid);
+
+            double bound = 0.0;
+
+            for (int i = 0; i < n; i++) {
+                QrySop q_i = args[i];
+
+                if (q_i.docIteratorHasMatch(r) && (q_i.docIteratorGetMatch() == docid))
+                    bound += matchBounds[i];
+                else
+                    bound += defaultBounds[i];
+            }
+
+            if (!ScoreBounds.isBelow(bound, Math.log(threshold))) {
+                q.docIteratorHasMatch(r);
+                topK.add(docid, ((QrySop) q).getScore(r));
+            }
+
+            for (int i = nonEssential; i < n; i++)
+                args[i].docIteratorAdvancePast(docid);
+        }
+
+        return topK.toScoreList();
+    }
+
+    /**
+     *  Get the exponent that an #AND or #WAND gives to an argument,
+     *  i.e., its weight in log space.
+     */
+    private static double getExponent(Qry q, int i) {
+
+        if (q instanceof QrySopWAnd) {
+            QrySopWAnd wand = (QrySopWAnd) q;
+            return wand.getWeight(i) / wand.getSumWeight();
+        }
+
+        return 1.0 / (double) q.args.size();
+    }
+
+    /**
+     *  Request that every term in a query is materialized.
+     */
+    private static void setMaterialize(Qry q) {
+
+        for (Qry q_i : q.args) {
+            if (q_i instanceof QryIopTerm)
+                ((QryIopTerm) q_i).setMaterialize(true);
+            else
+                setMaterialize(q_i);
+        }
+    }
+
+    /**
+     *  Get log space upper bounds on the score of a query operator.
+     *  @param q An initialized #SCORE, #AND, or #WAND operator.
+     *  @param r The Indri retrieval model.
+     *  @return The bound for documents that q matches, and the bound
+     *          for documents that it does not match.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    private static double[] getLogBounds(QrySop q, RetrievalModelIndri r)
+            throws IOException {
+
+        if (q instanceof QrySopScore) {
+            QryIop list = q.getArg(0);
+            double p = (double) list.getCtf() /
+                    (double) Idx.getSumOfFieldLengths(list.getField());
+
+            //  A default score is largest for an empty field, where it
+            //  is p.
+
+            return new double[] {
+                    Math.log(getMaxScore((QrySopScore) q, r)), Math.log(p)};
+        }
+
+        double matchBound = 0.0;
+        double defaultBound = 0.0;
+
+        for (int i = 0; i < q.args.size(); i++) {
+            double exponent = getExponent(q, i);
+            double[] bounds = getLogBounds((QrySop) q.args.get(i), r);
+
+            matchBound += exponent * Math.max(bounds[0], bounds[1]);
+            defaultBound += exponent * bounds[1];
+        }
+
+        return new double[] {matchBound, defaultBound};
+    }
+
+    /**
+     *  Get the maximum score of any posting of a #SCORE operator.
+     */
+    private static double getMaxScore(QrySopScore q, RetrievalModelIndri r)
+            throws IOException {
+
+        QryIop list = q.getArg(0);
+        String key = null;
+
+        if (list instanceof QryIopTerm) {
+            key = "indri|" + list + "|" + r.getMu() + "|" + r.getLambda();
+
+            Double cached = ScoreBounds.get(key);
+
+            if (cached != null)
+                return cached;
+        }
+
+        InvList invList = list.getInvertedList();
+        double max = 0.0;
+
+        for (int p = 0; p < invList.df; p++)
+            max = Math.max(max, q.calculateIndriScoreByTf(r, invList.getTf(p), invList.getDocid(p)));
+
+        if (key != null)
+            ScoreBounds.put(key, max);
+
+        return max;
+    }
+}
@@ -4,6 +4,7 @@
 
 import java.util.*;
 import java.io.*;
+import java.nio.*;
 
 import org.apache.lucene.index.*;
 import org.apache.lucene.util.*;
@@ -14,11 +15,34 @@ import org.apache.lucene.search.*;
  *  provides methods for accessing and manipulating inverted lists.
  *  Its purpose is to provide a simpler view of inverted lists than
  *  Lucene's native implementation.
+ *  <p>
+ *  Postings are stored in flat primitive arrays rather than as one
+ *  object per posting.  The n'th posting is described by docids[n],
+ *  tfs[n], and the locations between positionOffsets[n] and
+ *  positionOffsets[n+1] in the positions array.  Use the index-based
+ *  accessors (getDocid, getTf, getPositions) to read a posting.
+ *  </p>
  */
 public class InvList {
 
     //  --------------- Constants and variables -----------------------
 
+    /**
+     *  The initial capacity of an inverted list that is built by a
+     *  query operator.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     *  The largest initial compression buffer, in bytes.
+     */
+    private static final int INITIAL_COMPRESS_BYTES = 1 << 24;
+
+    /**
+     *  The largest array that the JVM reliably allocates.
+     */
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
     /**
      *  Collection term frequency: The number of times that a term
      *  occurs across all instances of the specified field.
@@ -37,50 +61,31 @@ public class InvList {
     public String field;
 
     /**
-     *  Postings that contain information about the occurrence of the
-     *  term in individual documents.
+     *  The internal document ids of the postings, in ascending order.
+     *  Only the first df entries are valid.
      */
-    public Vector<DocPosting> postings = new Vector<DocPosting>();
-
-    //  --------------- Nested classes --------------------------------
+    private int[] docids;
 
     /**
-     *  Utility class that makes it easier to construct postings.
+     *  The term frequency of each posting.  Only the first df entries
+     *  are valid.
      */
-    public class DocPosting {
+    private int[] tfs;
 
-        /**
-         *  The internal id of a document that contains the term in
-         *  the specified field.
-         */
-        public int docid = 0;
-
-        /**
-         *  Term frequency:  The number of times the term occurs in
-         *  the specified field of the document.
-         */
-        public int tf = 0;
-
-        /**
-         *  The locations where the term occurs in the specified field
-         *  of the document.
-         */
-        public Vector<Integer> positions = new Vector<Integer>();
-
-        public DocPosting(int d, int... locations) {
-            this.docid = d;
-            this.tf = locations.length;
-            for (int i = 0; i < locations.length; i++)
-                this.positions.add(locations[i]);
-        }
+    /**
+     *  Where each posting's locations start in the positions array.
+     *  Entry n+1 is the end of posting n, so the first df+1 entries
+     *  are valid.
+     */
+    private int[] positionOffsets;
 
-        public DocPosting(int d, List<Integer> locations) {
-            this.docid = d;
-            this.tf = locations.size();
-            for (int i = 0; i < locations.size(); i++)
-                this.positions.add(locations.get(i));
-        }
-    }
+    /**
+     *  The locations of all postings, stored one posting after
+     *  another.  Within a posting, the first location is stored as-is
+     *  and each later location is stored as the gap from the previous
+     *  one.
+     */
+    private int[] positions;
 
     //  --------------- Methods ---------------------------------------
 
@@ -88,6 +93,7 @@ public class InvList {
      *  Constructor.  An empty inverted list. Useful for some query operators.
      */
     public InvList() {
+        this.allocate(INITIAL_CAPACITY, INITIAL_CAPACITY);
     }
 
     /**
@@ -96,6 +102,7 @@ public class InvList {
      */
     public InvList(String fieldString) {
         this.field = new String(fieldString);
+        this.allocate(INITIAL_CAPACITY, INITIAL_CAPACITY);
     }
 
     /**
@@ -110,20 +117,77 @@ public class InvList {
 
         this.field = new String(fieldString);
 
+        //  Use the exported native index if there is one.
+
+        NativeIndex nativeIndex = Idx.getNativeIndex();
+
+        if (nativeIndex != null) {
+            ByteBuffer compressed = nativeIndex.getPostings(fieldString, termString);
+
+            if (compressed == null)
+                this.allocate(0, 0);
+            else
+                this.decode(compressed);
+
+            return;
+        }
+
         //  Prepare to access the index.
 
         BytesRef termBytes = new BytesRef(termString);
         Term term = new Term(fieldString, termBytes);
 
-        if (Idx.INDEXREADER.docFreq(term) < 1)
+        int luceneDf = Idx.INDEXREADER.docFreq(term);
+
+        if (luceneDf < 1) {
+            this.allocate(0, 0);
             return;
+        }
+
+        //  Size the arrays from the corpus statistics so that they are
+        //  not grown during the copy.  The statistics include deleted
+        //  documents, so they are upper bounds.
 
-        //  Lookup the inverted list.
+        long luceneCtf = Idx.INDEXREADER.totalTermFreq(term);
 
-        DocsAndPositionsEnum iList =
-                MultiFields.getTermPositionsEnum(Idx.INDEXREADER,
-                        MultiFields.getLiveDocs(Idx.INDEXREADER),
-                        fieldString, termBytes);
+        this.allocate(luceneDf, (luceneCtf > 0) ? (int) luceneCtf : INITIAL_CAPACITY);
+
+        //  Copy the inverted list one leaf (segment) at a time.  Each
+        //  leaf's enum skips the leaf's own deleted documents, and its
+        //  docids are offset by the leaf's doc base.
+
+        for (AtomicReaderContext leaf : Idx.INDEXREADER.leaves()) {
+            DocsAndPositionsEnum iList = leaf.reader().termPositionsEnum(term);
+
+            if (iList != null)
+                this.copyFrom(iList, leaf.docBase);
+        }
+    }
+
+    /**
+     *  Get an inverted list from a Lucene postings enum.  Used when the
+     *  caller is already iterating over a Lucene terms dictionary.
+     *  @param fieldString The field that the term occurs in.
+     *  @param iList The term's postings, positioned before the first document.
+     *  @param df The term's Lucene document frequency, used for sizing.
+     *  @param ctf The term's Lucene collection frequency, used for sizing.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public InvList(String fieldString, DocsAndPositionsEnum iList, int df, long ctf)
+            throws IOException {
+        this.field = new String(fieldString);
+        this.allocate(df, (ctf > 0) ? (int) ctf : INITIAL_CAPACITY);
+        this.copyFrom(iList, 0);
+    }
+
+    /**
+     *  Copy the remaining postings of a Lucene postings enum.
+     *  @param iList The postings to copy.
+     *  @param docBase Added to the enum's docids, e.g., the doc base
+     *         of a leaf.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    private void copyFrom(DocsAndPositionsEnum iList, int docBase) throws IOException {
 
         //  Copy from Lucene inverted list format to our inverted list
         //  format. This is a little inefficient, but allows query
@@ -133,48 +197,286 @@ public class InvList {
         while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
 
             int tf = iList.freq();
-            int[] positions = new int[tf];
 
-            for (int j = 0; j < tf; j++)
-                positions[j] = iList.nextPosition();
+            this.ensureDocCapacity(this.df + 1);
+            this.ensurePositionCapacity(this.ctf + tf);
+
+            int offset = this.positionOffsets[this.df];
+            int prev = 0;
+
+            for (int j = 0; j < tf; j++) {
+                int loc = iList.nextPosition();
+                this.positions[offset + j] = loc - prev;
+                prev = loc;
+            }
 
-            this.postings.add(new DocPosting(iList.docID(), positions));
+            this.docids[this.df] = docBase + iList.docID();
+            this.tfs[this.df] = tf;
             this.df++;
             this.ctf += tf;
+            this.positionOffsets[this.df] = offset + tf;
         }
     }
 
+    /**
+     *  Get an inverted list from a byte array that was produced by
+     *  compress.
+     *  @param fieldString The field that the term occurs in.
+     *  @param compressed A compressed inverted list.
+     */
+    public InvList(String fieldString, byte[] compressed) {
+        this.field = new String(fieldString);
+        this.decode(ByteBuffer.wrap(compressed));
+    }
+
+    /**
+     *  Get an inverted list from a buffer that holds the output of
+     *  compress, e.g., a slice of a memory-mapped file.  The inverted
+     *  list is decoded directly from the buffer.
+     *  @param fieldString The field that the term occurs in.
+     *  @param compressed A compressed inverted list.
+     */
+    public InvList(String fieldString, ByteBuffer compressed) {
+        this.field = new String(fieldString);
+        this.decode(compressed);
+    }
+
+    /**
+     *  Decode a compressed inverted list, starting at the buffer's
+     *  current position.
+     *  @param compressed A compressed inverted list.
+     */
+    private void decode(ByteBuffer compressed) {
+
+        int n = VByte.read(compressed);
+        int locs = VByte.read(compressed);
+
+        this.allocate(n, locs);
+
+        int docid = 0;
+
+        for (int i = 0; i < n; i++) {
+            docid += VByte.read(compressed);
+
+            int tf = VByte.read(compressed);
+            int offset = this.positionOffsets[i];
+
+            for (int j = 0; j < tf; j++)
+                this.positions[offset + j] = VByte.read(compressed);
+
+            this.docids[i] = docid;
+            this.tfs[i] = tf;
+            this.positionOffsets[i + 1] = offset + tf;
+        }
+
+        this.df = n;
+        this.ctf = locs;
+    }
+
+    /**
+     *  Allocate the posting arrays.
+     *  @param docCapacity The expected number of postings.
+     *  @param positionCapacity The expected number of locations.
+     */
+    private void allocate(int docCapacity, int positionCapacity) {
+        this.docids = new int[docCapacity];
+        this.tfs = new int[docCapacity];
+        this.positionOffsets = new int[docCapacity + 1];
+        this.positions = new int[positionCapacity];
+    }
+
     /**
      *  Append a posting to the posting list.  Posting must be appended
      *  in docid order, otherwise this method fails.
      *  @param docid The internal document id of the posting.
-     *  @param positions A list of positions where the term occurs.
+     *  @param locations A list of positions where the term occurs.
+     *  @return true if the posting was added successfully, otherwise false.
+     */
+    public boolean appendPosting(int docid, List<Integer> locations) {
+
+        int[] buffer = new int[locations.size()];
+
+        for (int i = 0; i < buffer.length; i++)
+            buffer[i] = locations.get(i);
+
+        return this.appendPosting(docid, buffer, buffer.length);
+    }
+
+    /**
+     *  Append a posting to the posting list.  Posting must be appended
+     *  in docid order, otherwise this method fails.  The locations are
+     *  copied, so the caller may reuse the buffer.
+     *  @param docid The internal document id of the posting.
+     *  @param locations A buffer of ascending positions where the term occurs.
+     *  @param tf The number of valid entries in locations.
      *  @return true if the posting was added successfully, otherwise false.
      */
-    public boolean appendPosting(int docid, List<Integer> positions) {
+    public boolean appendPosting(int docid, int[] locations, int tf) {
 
         //  A posting can only be appended if its docid is greater than
         //  the last docid.
 
-        if ((this.df > 1) &&
-                (this.postings.get(this.df - 1).docid >= docid))
+        if ((this.df > 0) &&
+                (this.docids[this.df - 1] >= docid))
             return false;
 
-        DocPosting p = new DocPosting(docid, positions);
+        this.ensureDocCapacity(this.df + 1);
+        this.ensurePositionCapacity(this.ctf + tf);
+
+        int offset = this.positionOffsets[this.df];
+        int prev = 0;
 
-        this.postings.add(p);
+        for (int j = 0; j < tf; j++) {
+            this.positions[offset + j] = locations[j] - prev;
+            prev = locations[j];
+        }
+
+        this.docids[this.df] = docid;
+        this.tfs[this.df] = tf;
         this.df++;
-        this.ctf += p.tf;
+        this.ctf += tf;
+        this.positionOffsets[this.df] = offset + tf;
         return true;
     }
 
+    /**
+     *  Make room for at least the specified number of postings.
+     *  @param capacity The required number of postings.
+     */
+    private void ensureDocCapacity(int capacity) {
+
+        if (capacity <= this.docids.length)
+            return;
+
+        int newCapacity = Math.max(capacity, 2 * this.docids.length);
+
+        this.docids = Arrays.copyOf(this.docids, newCapacity);
+        this.tfs = Arrays.copyOf(this.tfs, newCapacity);
+        this.positionOffsets = Arrays.copyOf(this.positionOffsets, newCapacity + 1);
+    }
+
+    /**
+     *  Make room for at least the specified number of locations.
+     *  @param capacity The required number of locations.
+     */
+    private void ensurePositionCapacity(int capacity) {
+
+        if (capacity <= this.positions.length)
+            return;
+
+        int newCapacity = Math.max(capacity, 2 * this.positions.length);
+
+        this.positions = Arrays.copyOf(this.positions, newCapacity);
+    }
+
+    /**
+     *  Compress the inverted list into a byte array.  The df and ctf
+     *  are followed by one (docid gap, tf, location gaps) group per
+     *  posting, and every number is variable-byte (VByte) encoded,
+     *  seven bits per byte.  Locations must be in ascending order
+     *  within each posting, which is true of term inverted lists.
+     *  @return The compressed inverted list.
+     */
+    public byte[] compress() {
+
+        //  The worst-case size is computed as a long, because it
+        //  overflows an int for very long lists.  Long lists start with
+        //  a smaller buffer that grows as postings are written.
+
+        long worstCase = (long) VByte.MAX_BYTES * (2L + 2L * this.df + this.ctf);
+        byte[] bytes = new byte[(int) Math.min(worstCase, INITIAL_COMPRESS_BYTES)];
+        int length = 0;
+
+        length = VByte.write(bytes, length, this.df);
+        length = VByte.write(bytes, length, this.ctf);
+
+        int prevDocid = 0;
+
+        for (int i = 0; i < this.df; i++) {
+            int tf = this.positionOffsets[i + 1] - this.positionOffsets[i];
+
+            bytes = ensureByteCapacity(bytes, length + (long) VByte.MAX_BYTES * (2L + tf));
+            length = VByte.write(bytes, length, this.docids[i] - prevDocid);
+            length = VByte.write(bytes, length, this.tfs[i]);
+            prevDocid = this.docids[i];
+
+            for (int j = this.positionOffsets[i]; j < this.positionOffsets[i + 1]; j++)
+                length = VByte.write(bytes, length, this.positions[j]);
+        }
+
+        return Arrays.copyOf(bytes, length);
+    }
+
+    /**
+     *  Make sure that a compression buffer can hold capacity bytes.
+     *  @param bytes The buffer.
+     *  @param capacity The number of bytes needed.
+     *  @return The buffer, or a larger copy of it.
+     */
+    private static byte[] ensureByteCapacity(byte[] bytes, long capacity) {
+
+        if (capacity <= bytes.length)
+            return bytes;
+
+        if (capacity > MAX_ARRAY_SIZE)
+            throw new IllegalStateException("The inverted list is too large to compress.");
+
+        long newCapacity = Math.min(Math.max(capacity, 2L * bytes.length), MAX_ARRAY_SIZE);
+
+        return Arrays.copyOf(bytes, (int) newCapacity);
+    }
+
     /**
      *  Get the n'th document id from the inverted list.
-     *  @param docid The index of the requested document.
+     *  @param n The index of the requested document.
      *  @return The internal document id.
      */
-    public int getDocid(int docid) {
-        return this.postings.get(docid).docid;
+    public int getDocid(int n) {
+        return this.docids[n];
+    }
+
+    /**
+     *  Find the first posting at or after index start whose docid is
+     *  at least the specified docid.  The search gallops (probes start+1,
+     *  start+2, start+4, ...) until it passes the docid, and
+     *  then does a binary search within the last step, so the cost is
+     *  logarithmic in the distance skipped rather than linear.
+     *  @param start The index to start searching from.
+     *  @param docid The target internal document id.
+     *  @return The index of the posting, or df if there is none.
+     */
+    public int findDocid(int start, int docid) {
+
+        if ((start >= this.df) || (this.docids[start] >= docid))
+            return start;
+
+        //  Gallop.  docids[low] < docid is invariant.
+
+        int low = start;
+        int step = 1;
+        int high = start + step;
+
+        while ((high < this.df) && (this.docids[high] < docid)) {
+            low = high;
+            step <<= 1;
+            high = start + step;
+        }
+
+        if (high > this.df)
+            high = this.df;
+
+        //  Binary search for the first docids[i] >= docid in (low, high].
+
+        while (low + 1 < high) {
+            int mid = (low + high) >>> 1;
+
+            if (this.docids[mid] < docid)
+                low = mid;
+            else
+                high = mid;
+        }
+
+        return high;
     }
 
     /**
@@ -183,7 +485,34 @@ public class InvList {
      *  @return The document's term frequency.
      */
     public int getTf(int n) {
-        return this.postings.get(n).tf;
+        return this.tfs[n];
+    }
+
+    /**
+     *  Decode the locations of the n'th document of the inverted list
+     *  into a buffer.  If the buffer is null or too small, a larger one
+     *  is allocated, so callers should keep the returned buffer and
+     *  pass it in again next time.
+     *  @param n The index of the requested document.
+     *  @param buffer A buffer to decode into, or null.
+     *  @return A buffer whose first getTf(n) entries are the locations.
+     */
+    public int[] getPositions(int n, int[] buffer) {
+
+        int tf = this.tfs[n];
+
+        if ((buffer == null) || (buffer.length < tf))
+            buffer = new int[Math.max(tf, INITIAL_CAPACITY)];
+
+        int offset = this.positionOffsets[n];
+        int loc = 0;
+
+        for (int j = 0; j < tf; j++) {
+            loc += this.positions[offset + j];
+            buffer[j] = loc;
+        }
+
+        return buffer;
     }
 
     /**
@@ -193,12 +522,16 @@ public class InvList {
 
         System.out.println("df:  " + this.df + ", ctf: " + this.ctf);
 
+        int[] locations = null;
+
         for (int i = 0; i < this.df; i++) {
-            System.out.print("docid:  " + this.postings.elementAt(i).docid + ", tf: "
-                    + this.postings.elementAt(i).tf + ", locs: ");
+            System.out.print("docid:  " + this.docids[i] + ", tf: "
+                    + this.tfs[i] + ", locs: ");
+
+            locations = this.getPositions(i, locations);
 
-            for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-                System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
+            for (int j = 0; j < this.tfs[i]; j++) {
+                System.out.print(locations[j] + " ");
             }
 
             System.out.println();
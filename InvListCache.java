@@ -0,0 +1,258 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A process-wide cache of term inverted lists.  Query sets often
+ *  repeat terms (training queries, or a query that is run again after
+ *  pseudo relevance feedback), so an inverted list that has been read
+ *  from Lucene once is kept for later queries.
+ *  <p>
+ *  Inverted lists are stored compressed (see InvList.compress) and are
+ *  decompressed on each hit.  The cache is bounded by a byte budget;
+ *  when a new list does not fit, the least recently used lists are
+ *  evicted.  A budget of 0 (the default) disables the cache, in which
+ *  case getInvList simply reads the inverted list from the index.
+ *  </p><p>
+ *  The block-max metadata that BlockMaxWand uses is computed from a
+ *  cached list the first time that it is requested, and is then kept
+ *  next to the list and charged against the same budget.
+ *  </p>
+ */
+public class InvListCache {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  Approximate per-entry overhead (map entry, key, array header),
+   *  in bytes, that is charged against the budget.
+   */
+  private static final int ENTRY_OVERHEAD = 96;
+
+  private static long maxBytes = 0;
+  private static long usedBytes = 0;
+
+  private static long hits = 0;
+  private static long misses = 0;
+  private static long evictions = 0;
+
+  /**
+   *  Cached inverted lists, keyed by field and term, in least recently
+   *  used order.
+   */
+  private static LinkedHashMap<String, Entry> entries =
+    new LinkedHashMap<String, Entry>(64, 0.75f, true);
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  A compressed inverted list and, once it has been requested, its
+   *  block-max metadata.
+   */
+  private static class Entry {
+    byte[] compressed;
+    BlockMaxWand.BlockMax blockMax = null;
+
+    Entry (byte[] compressed) {
+      this.compressed = compressed;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Set the byte budget of the cache and clear it.
+   *  @param budget The maximum number of bytes to use, or 0 to
+   *         disable the cache.
+   */
+  public static synchronized void initialize (long budget) {
+
+    if (budget < 0) {
+      throw new IllegalArgumentException ("The cache size must be >= 0.");
+    }
+
+    InvListCache.maxBytes = budget;
+    InvListCache.clear ();
+  }
+
+  /**
+   *  Remove every inverted list from the cache and reset its
+   *  statistics, e.g., because a different index was opened.  The
+   *  byte budget does not change.
+   */
+  public static synchronized void clear () {
+    InvListCache.usedBytes = 0;
+    InvListCache.hits = 0;
+    InvListCache.misses = 0;
+    InvListCache.evictions = 0;
+    InvListCache.entries.clear ();
+  }
+
+  /**
+   *  Indicates whether the cache is enabled.
+   *  @return True if the cache has a byte budget.
+   */
+  public static synchronized boolean isEnabled () {
+    return (InvListCache.maxBytes > 0);
+  }
+
+  /**
+   *  Get the inverted list of a term, from the cache if possible,
+   *  otherwise from the index.  The caller owns the returned InvList.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @return The inverted list.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static InvList getInvList (String termString, String fieldString)
+    throws IOException {
+
+    String key = fieldString + '\0' + termString;
+    byte[] compressed;
+
+    synchronized (InvListCache.class) {
+      if (InvListCache.maxBytes <= 0) {
+        compressed = null;
+      } else {
+        Entry entry = InvListCache.entries.get (key);
+
+        compressed = (entry == null) ? null : entry.compressed;
+
+        if (compressed != null) {
+          InvListCache.hits++;
+        } else {
+          InvListCache.misses++;
+        }
+      }
+    }
+
+    if (compressed != null) {
+      return new InvList (fieldString, compressed);
+    }
+
+    //  Cache miss.  Read the inverted list outside of the lock.
+
+    InvList invList = new InvList (termString, fieldString);
+
+    if (InvListCache.isEnabled ()) {
+      InvListCache.put (key, new Entry (invList.compress ()));
+    }
+
+    return invList;
+  }
+
+  /**
+   *  Get the block-max metadata of a term's inverted list.  It is
+   *  computed the first time that it is requested for a cached list,
+   *  and kept with the list until the list is evicted.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @return The block-max metadata.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static BlockMaxWand.BlockMax getBlockMax (String termString,
+                                                   String fieldString)
+    throws IOException {
+
+    String key = fieldString + '\0' + termString;
+
+    synchronized (InvListCache.class) {
+      Entry entry = InvListCache.entries.get (key);
+
+      if ((entry != null) && (entry.blockMax != null)) {
+        return entry.blockMax;
+      }
+    }
+
+    //  Compute the metadata outside of the lock.  getInvList caches the
+    //  list if it was not cached yet.
+
+    BlockMaxWand.BlockMax blockMax =
+      BlockMaxWand.BlockMax.build (InvListCache.getInvList (termString, fieldString));
+
+    synchronized (InvListCache.class) {
+      Entry entry = InvListCache.entries.get (key);
+
+      if ((entry != null) && (entry.blockMax == null)) {
+        Entry withBlockMax = new Entry (entry.compressed);
+        withBlockMax.blockMax = blockMax;
+        InvListCache.put (key, withBlockMax);
+      }
+    }
+
+    return blockMax;
+  }
+
+  /**
+   *  Add an inverted list to the cache, or replace it, evicting the
+   *  least recently used lists until it fits.  Lists that are larger
+   *  than the whole budget are not cached.
+   *  @param key The cache key.
+   *  @param entry The compressed inverted list.
+   */
+  private static synchronized void put (String key, Entry entry) {
+
+    long size = entrySize (key, entry);
+
+    if (size > InvListCache.maxBytes) {
+      return;
+    }
+
+    Entry previous = InvListCache.entries.put (key, entry);
+
+    if (previous != null) {
+      InvListCache.usedBytes -= entrySize (key, previous);
+    }
+
+    InvListCache.usedBytes += size;
+
+    Iterator<Map.Entry<String, Entry>> lru =
+      InvListCache.entries.entrySet ().iterator ();
+
+    while (InvListCache.usedBytes > InvListCache.maxBytes) {
+      Map.Entry<String, Entry> eldest = lru.next ();
+      InvListCache.usedBytes -= entrySize (eldest.getKey (), eldest.getValue ());
+      InvListCache.evictions++;
+      lru.remove ();
+    }
+  }
+
+  /**
+   *  The number of bytes that an entry is charged against the budget.
+   */
+  private static long entrySize (String key, Entry entry) {
+    long size = entry.compressed.length + 2L * key.length () + ENTRY_OVERHEAD;
+
+    if (entry.blockMax != null) {
+      size += entry.blockMax.ramBytesUsed () + ENTRY_OVERHEAD;
+    }
+
+    return size;
+  }
+
+  /**
+   *  Get the fraction of lookups that were found in the cache.
+   *  @return The hit rate, or 0 if there were no lookups.
+   */
+  public static synchronized double getHitRate () {
+    long lookups = InvListCache.hits + InvListCache.misses;
+    return (lookups == 0) ? 0.0 : (double) InvListCache.hits / (double) lookups;
+  }
+
+  /**
+   *  Get a one-line summary of cache activity, e.g., for the end of a
+   *  batch run.
+   *  @return The cache statistics.
+   */
+  public static synchronized String getStatistics () {
+    return String.format (
+      "InvList cache:  %d hits, %d misses, hit rate %.3f, %d evictions, " +
+      "%d lists, %d of %d bytes used",
+      InvListCache.hits, InvListCache.misses, getHitRate (),
+      InvListCache.evictions, InvListCache.entries.size (),
+      InvListCache.usedBytes, InvListCache.maxBytes);
+  }
+
+}
@@ -0,0 +1,438 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ *  A read-only, memory-mapped copy of the parts of a Lucene index that
+ *  query evaluation uses:  a lexicon with df and ctf, compressed
+ *  inverted lists with positions, field lengths, external document
+ *  ids, and corpus statistics.  The files are written by
+ *  {@link ExportIndex}.
+ *  <p>
+ *  Because the files are memory-mapped, inverted lists are decoded
+ *  straight from the operating system's page cache, and several JVMs
+ *  that use the same native index share one copy of it in memory.
+ *  </p><p>
+ *  A native index directory contains:
+ *  </p>
+ *  <pre>
+ *    meta            The version of the Lucene index, maxDoc, numDocs,
+ *                    and per-field docCount and sumTotalTermFreq.
+ *    FIELD.lex       The lexicon of FIELD.  nTerms, then int[nTerms+1]
+ *                    term offsets, int[nTerms] df, int[nTerms] ctf,
+ *                    long[nTerms+1] postings offsets, long[nTerms+1]
+ *                    block-max offsets, then the UTF-8 terms in
+ *                    Lucene (byte) order.
+ *    FIELD.post      The inverted lists of FIELD, in the format
+ *                    written by InvList.compress.
+ *    FIELD.bmax      The block-max metadata of FIELD's inverted lists.
+ *                    For each block of BlockMaxWand.BLOCK_SIZE
+ *                    postings, the int last docid, largest tf, and
+ *                    smallest field length.
+ *    FIELD.len       int[maxDoc] lengths of FIELD.
+ *    externalIds     maxDoc, int[maxDoc+1] offsets, then the UTF-8
+ *                    external ids.
+ *  </pre>
+ */
+public class NativeIndex {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  Identifies a native index meta file.
+   */
+  static final int MAGIC = 0x51454e58;	// "QENX"
+
+  static final int VERSION = 3;
+
+  /**
+   *  Postings files are mapped in chunks of this many bytes, because
+   *  a single MappedByteBuffer can not exceed 2GB.
+   */
+  static final long POSTINGS_CHUNK = 1L << 30;
+
+  private long indexVersion;
+  private int maxDoc;
+  private int numDocs;
+
+  private Map<String, Field> fields = new HashMap<String, Field>();
+
+  private IntBuffer externalIdOffsets;
+  private ByteBuffer externalIdBytes;
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  The mapped files and statistics of one field.
+   */
+  private static class Field {
+    int docCount;
+    long sumTotalTermFreq;
+
+    int nTerms;
+    IntBuffer termOffsets;
+    IntBuffer df;
+    IntBuffer ctf;
+    LongBuffer postingsOffsets;
+    LongBuffer blockMaxOffsets;
+    ByteBuffer termBytes;
+
+    ByteBuffer[] postings;
+    ByteBuffer[] blockMax;
+    IntBuffer lengths;
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Open a native index.
+   *  @param path A directory that was written by ExportIndex.
+   *  @throws IOException Error reading the native index.
+   */
+  public NativeIndex (String path) throws IOException {
+
+    File dir = new File (path);
+
+    try (DataInputStream meta = new DataInputStream (
+           new BufferedInputStream (new FileInputStream (new File (dir, "meta"))))) {
+
+      if ((meta.readInt () != MAGIC) || (meta.readInt () != VERSION)) {
+        throw new IOException ("Not a native index: " + path);
+      }
+
+      this.indexVersion = meta.readLong ();
+      this.maxDoc = meta.readInt ();
+      this.numDocs = meta.readInt ();
+
+      int nFields = meta.readInt ();
+
+      for (int i = 0; i < nFields; i++) {
+        String name = meta.readUTF ();
+        Field f = new Field ();
+
+        f.docCount = meta.readInt ();
+        f.sumTotalTermFreq = meta.readLong ();
+
+        boolean hasLengths = meta.readBoolean ();
+
+        openLexicon (f, new File (dir, name + ".lex"));
+        f.postings = mapChunks (new File (dir, name + ".post"));
+        f.blockMax = mapChunks (new File (dir, name + ".bmax"));
+
+        if (hasLengths) {
+          f.lengths = map (new File (dir, name + ".len")).asIntBuffer ();
+        }
+
+        this.fields.put (name, f);
+      }
+    }
+
+    ByteBuffer ids = map (new File (dir, "externalIds"));
+    int n = ids.getInt (0);
+
+    ids.position (4);
+    ByteBuffer offsets = ids.slice ();
+    offsets.limit (4 * (n + 1));
+    this.externalIdOffsets = offsets.asIntBuffer ();
+
+    ids.position (4 + 4 * (n + 1));
+    this.externalIdBytes = ids.slice ();
+  }
+
+  /**
+   *  Map a lexicon file and create views of its sections.
+   */
+  private static void openLexicon (Field f, File file) throws IOException {
+
+    ByteBuffer lex = map (file);
+    int n = lex.getInt (0);
+    int pos = 4;
+
+    f.nTerms = n;
+    f.termOffsets = section (lex, pos, 4 * (n + 1)).asIntBuffer ();
+    pos += 4 * (n + 1);
+    f.df = section (lex, pos, 4 * n).asIntBuffer ();
+    pos += 4 * n;
+    f.ctf = section (lex, pos, 4 * n).asIntBuffer ();
+    pos += 4 * n;
+    f.postingsOffsets = section (lex, pos, 8 * (n + 1)).asLongBuffer ();
+    pos += 8 * (n + 1);
+    f.blockMaxOffsets = section (lex, pos, 8 * (n + 1)).asLongBuffer ();
+    pos += 8 * (n + 1);
+    f.termBytes = section (lex, pos, lex.capacity () - pos);
+  }
+
+  /**
+   *  Get a view of part of a buffer.
+   */
+  private static ByteBuffer section (ByteBuffer b, int start, int length) {
+    ByteBuffer d = b.duplicate ();
+    d.position (start);
+    d.limit (start + length);
+    return d.slice ();
+  }
+
+  /**
+   *  Map a whole file read-only.
+   */
+  private static MappedByteBuffer map (File file) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile (file, "r");
+         FileChannel channel = raf.getChannel ()) {
+      return channel.map (FileChannel.MapMode.READ_ONLY, 0, channel.size ());
+    }
+  }
+
+  /**
+   *  Map a file that may be larger than 2GB as a sequence of chunks.
+   */
+  private static ByteBuffer[] mapChunks (File file) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile (file, "r");
+         FileChannel channel = raf.getChannel ()) {
+      long size = channel.size ();
+      int n = (int) ((size + POSTINGS_CHUNK - 1) / POSTINGS_CHUNK);
+      ByteBuffer[] chunks = new ByteBuffer[n];
+
+      for (int i = 0; i < n; i++) {
+        long start = i * POSTINGS_CHUNK;
+        chunks[i] = channel.map (FileChannel.MapMode.READ_ONLY, start,
+                                 Math.min (POSTINGS_CHUNK, size - start));
+      }
+
+      return chunks;
+    }
+  }
+
+  /**
+   *  Find a term in a field's lexicon.
+   *  @return The index of the term, or -1 if it is not in the lexicon.
+   */
+  private static int findTerm (Field f, byte[] term) {
+
+    int low = 0;
+    int high = f.nTerms - 1;
+
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = compareTerm (f, mid, term);
+
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   *  Compare the i'th lexicon term to a term in unsigned byte order,
+   *  which is the order of the Lucene terms dictionary.
+   */
+  private static int compareTerm (Field f, int i, byte[] term) {
+
+    int start = f.termOffsets.get (i);
+    int length = f.termOffsets.get (i + 1) - start;
+    int n = Math.min (length, term.length);
+
+    for (int j = 0; j < n; j++) {
+      int a = f.termBytes.get (start + j) & 0xFF;
+      int b = term[j] & 0xFF;
+
+      if (a != b) {
+        return a - b;
+      }
+    }
+
+    return length - term.length;
+  }
+
+  /**
+   *  Get the lexicon index of a term.
+   *  @return The index, or -1 if the field or term does not exist.
+   */
+  private int lookup (String fieldName, String term) {
+    Field f = this.fields.get (fieldName);
+
+    if (f == null) {
+      return -1;
+    }
+
+    return findTerm (f, term.getBytes (StandardCharsets.UTF_8));
+  }
+
+  /**
+   *  Get the compressed inverted list of a term.  The returned buffer
+   *  is a view of the mapped file when possible, so it is not copied.
+   *  @param fieldName The field that the term occurs in.
+   *  @param term The processed (stemmed, lower-cased, etc) term string.
+   *  @return A buffer in InvList.compress format, or null if the term
+   *          does not occur in the field.
+   */
+  public ByteBuffer getPostings (String fieldName, String term) {
+
+    int i = this.lookup (fieldName, term);
+
+    if (i < 0) {
+      return null;
+    }
+
+    Field f = this.fields.get (fieldName);
+    long start = f.postingsOffsets.get (i);
+    int length = (int) (f.postingsOffsets.get (i + 1) - start);
+    int chunk = (int) (start / POSTINGS_CHUNK);
+    int offset = (int) (start % POSTINGS_CHUNK);
+
+    if (offset + length <= f.postings[chunk].capacity ()) {
+      return section (f.postings[chunk], offset, length);
+    }
+
+    //  The list straddles two chunks, so it must be copied.
+
+    byte[] copy = new byte[length];
+    int first = f.postings[chunk].capacity () - offset;
+    ByteBuffer a = f.postings[chunk].duplicate ();
+    ByteBuffer b = f.postings[chunk + 1].duplicate ();
+
+    a.position (offset);
+    a.get (copy, 0, first);
+    b.get (copy, first, length - first);
+    return ByteBuffer.wrap (copy);
+  }
+
+  /**
+   *  Get the block-max metadata of a term's inverted list.
+   *  @param fieldName The field that the term occurs in.
+   *  @param term The processed (stemmed, lower-cased, etc) term string.
+   *  @return The metadata.  It has no blocks if the term does not
+   *          occur in the field.
+   */
+  public BlockMaxWand.BlockMax getBlockMax (String fieldName, String term) {
+
+    int i = this.lookup (fieldName, term);
+
+    if (i < 0) {
+      return new BlockMaxWand.BlockMax (0);
+    }
+
+    Field f = this.fields.get (fieldName);
+    BlockMaxWand.BlockMax b = new BlockMaxWand.BlockMax (f.df.get (i));
+    long pos = f.blockMaxOffsets.get (i);
+
+    //  Each value is 4-byte aligned, and chunks are a multiple of 4
+    //  bytes long, so no value straddles two chunks.
+
+    for (int block = 0; block < b.lastDocid.length; block++, pos += 12) {
+      b.lastDocid[block] = getInt (f.blockMax, pos);
+      b.maxTf[block] = getInt (f.blockMax, pos + 4);
+      b.minLength[block] = getInt (f.blockMax, pos + 8);
+    }
+
+    return b;
+  }
+
+  /**
+   *  Read an int from a file that is mapped in chunks.
+   */
+  private static int getInt (ByteBuffer[] chunks, long pos) {
+    return chunks[(int) (pos / POSTINGS_CHUNK)].getInt ((int) (pos % POSTINGS_CHUNK));
+  }
+
+  /**
+   *  Get the document frequency of a term.
+   *  @return The df, or 0 if the term does not occur in the field.
+   */
+  public int getDf (String fieldName, String term) {
+    int i = this.lookup (fieldName, term);
+    return (i < 0) ? 0 : this.fields.get (fieldName).df.get (i);
+  }
+
+  /**
+   *  Get the collection term frequency of a term.
+   *  @return The ctf, or 0 if the term does not occur in the field.
+   */
+  public int getCtf (String fieldName, String term) {
+    int i = this.lookup (fieldName, term);
+    return (i < 0) ? 0 : this.fields.get (fieldName).ctf.get (i);
+  }
+
+  /**
+   *  Get the number of documents that contain the specified field.
+   */
+  public int getDocCount (String fieldName) {
+    Field f = this.fields.get (fieldName);
+    return (f == null) ? 0 : f.docCount;
+  }
+
+  /**
+   *  Get the external id of a document.
+   *  @param docid An internal document id.
+   *  @return The external id.
+   */
+  public String getExternalDocid (int docid) {
+
+    int start = this.externalIdOffsets.get (docid);
+    int length = this.externalIdOffsets.get (docid + 1) - start;
+    byte[] bytes = new byte[length];
+    ByteBuffer b = this.externalIdBytes.duplicate ();
+
+    b.position (start);
+    b.get (bytes);
+    return new String (bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   *  Get the length of a field in a document.
+   *  @param fieldName The field name.
+   *  @param docid An internal document id.
+   *  @return The field length, including stopword positions.
+   */
+  public int getFieldLength (String fieldName, int docid) {
+    Field f = this.fields.get (fieldName);
+
+    if ((f == null) || (f.lengths == null)) {
+      throw new IllegalArgumentException ("No lengths for field " + fieldName);
+    }
+
+    return f.lengths.get (docid);
+  }
+
+  /**
+   *  Get the number of live documents in the corpus.
+   */
+  public int getNumDocs () {
+    return this.numDocs;
+  }
+
+  /**
+   *  Get the version of the Lucene index that the native index was
+   *  exported from.
+   */
+  public long getIndexVersion () {
+    return this.indexVersion;
+  }
+
+  /**
+   *  Get the number of document ids, including deleted documents.
+   */
+  public int getMaxDoc () {
+    return this.maxDoc;
+  }
+
+  /**
+   *  Get the total number of term occurrences in all instances of
+   *  the specified field.
+   */
+  public long getSumOfFieldLengths (String fieldName) {
+    Field f = this.fields.get (fieldName);
+    return (f == null) ? 0 : f.sumTotalTermFreq;
+  }
+
+}
@@ -0,0 +1,445 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.PriorityQueue;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.*;
+
+/**
+ *  A phrase index:  precomputed inverted lists of the most frequent
+ *  adjacent term pairs (bigrams) of each field.  #NEAR/1 of two terms
+ *  usually intersects two long positional inverted lists; when the
+ *  pair is in the phrase index, QryOptimizer replaces the #NEAR/1 with
+ *  a QryIopPhrase, which reads one list, like a term does.  Run this
+ *  class to see a simple usage message.
+ *  <p>
+ *  The build reads the positional postings of the M most frequent
+ *  terms of each field that has positions, counts their adjacent pairs
+ *  in live documents, and keeps the N most frequent pairs of each
+ *  field.  Term vectors are not needed.  Each pair's inverted list is
+ *  computed by evaluating #NEAR/1 over the two terms, so it is
+ *  identical to the list that query evaluation would compute.
+ *  </p><p>
+ *  The index is saved as int MAGIC, int VERSION, the long version of
+ *  the Lucene index, int maxDoc, and int nPhrases, followed by each
+ *  phrase's field and two terms (as DataOutput UTF strings), an int
+ *  length, and its inverted list in InvList.compress format.  It only
+ *  holds N lists per field, so it is loaded into memory.
+ *  </p>
+ */
+public class PhraseIndex {
+
+  //  --------------- Constants and variables ---------------------
+
+  /**
+   *  Identifies a phrase index file.
+   */
+  static final int MAGIC = 0x51455048;	// "QEPH"
+
+  static final int VERSION = 2;
+
+  static String usage =
+    "Usage:  java " +
+    System.getProperty("sun.java.command") +
+    " -index INDEX_PATH -output PHRASE_INDEX_PATH [-pairs N] [-terms M]\n\n" +
+    "Writes the inverted lists of the N (default 1000) most frequent\n" +
+    "adjacent term pairs of each field, for use with the\n" +
+    "phraseIndexPath parameter.  Only pairs of the M (default 1000,\n" +
+    "at most 16384) most frequent terms of a field are counted, in\n" +
+    "4*M*M bytes of memory.\n";
+
+  /**
+   *  The largest number of terms per field whose pairs are counted.
+   */
+  static final int MAX_TERMS = 16384;
+
+  private long indexVersion;
+  private int maxDoc;
+
+  /**
+   *  Compressed inverted lists and their dfs, keyed by field and term
+   *  pair.
+   */
+  private Map<String, byte[]> lists = new HashMap<String, byte[]> ();
+  private Map<String, Integer> dfs = new HashMap<String, Integer> ();
+
+  //  --------------- Methods ---------------------------------------
+
+  public static void main (String[] args) throws IOException {
+
+    String indexPath = null;
+    String outputPath = null;
+    int pairs = 1000;
+    int terms = 1000;
+
+    for (int i=0; i + 1 < args.length; i++) {
+      if ("-index".equals (args[i])) {
+        indexPath = args[++i];
+      } else if ("-output".equals (args[i])) {
+        outputPath = args[++i];
+      } else if ("-pairs".equals (args[i])) {
+        pairs = Integer.parseInt (args[++i]);
+      } else if ("-terms".equals (args[i])) {
+        terms = Integer.parseInt (args[++i]);
+      }
+    }
+
+    if ((indexPath == null) || (outputPath == null) || (pairs < 1) ||
+        (terms < 1) || (terms > MAX_TERMS)) {
+      System.err.println (usage);
+      System.exit (1);
+    }
+
+    Idx.initialize (indexPath);
+    build (pairs, terms, new File (outputPath));
+  }
+
+  /**
+   *  Build a phrase index for the index that Idx opened.
+   *  @param pairs The number of term pairs to keep per field.
+   *  @param terms The number of frequent terms per field whose pairs
+   *         are counted, at most MAX_TERMS.
+   *  @param file The output file.  It is written under a temporary
+   *         name and then renamed, so a partial file is never loaded.
+   *  @throws IOException Error accessing the index or writing the file.
+   */
+  public static void build (int pairs, int terms, File file)
+    throws IOException {
+
+    IndexReader reader = Idx.INDEXREADER;
+    List<String> fieldNames = new ArrayList<String> ();
+
+    for (FieldInfo fi : MultiFields.getMergedFieldInfos (reader)) {
+      if (fi.isIndexed () &&
+          (fi.getIndexOptions ().compareTo (
+             FieldInfo.IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) >= 0)) {
+        fieldNames.add (fi.name);
+      }
+    }
+
+    File tmp = new File (file.getPath () + ".tmp");
+    int nPhrases = 0;
+
+    try (DataOutputStream out = new DataOutputStream (
+           new BufferedOutputStream (new FileOutputStream (tmp)))) {
+
+      //  The phrase count is not known yet, so it is written last.
+
+      out.writeInt (MAGIC);
+      out.writeInt (VERSION);
+      out.writeLong (Idx.getIndexVersion ());
+      out.writeInt (reader.maxDoc ());
+      out.writeInt (0);
+
+      for (String field : fieldNames) {
+        for (String[] pair : getFrequentPairs (field, pairs, terms)) {
+          QryIopNear near = new QryIopNear (1);
+
+          near.appendArg (new QryIopTerm (pair[0], field));
+          near.appendArg (new QryIopTerm (pair[1], field));
+          near.initialize (null);
+
+          InvList invList = near.getInvertedList ();
+
+          if (invList.df == 0) {
+            continue;
+          }
+
+          byte[] compressed = invList.compress ();
+
+          out.writeUTF (field);
+          out.writeUTF (pair[0]);
+          out.writeUTF (pair[1]);
+          out.writeInt (compressed.length);
+          out.write (compressed);
+          nPhrases++;
+        }
+
+        System.out.println ("Indexed phrases of field " + field);
+      }
+    }
+
+    try (RandomAccessFile raf = new RandomAccessFile (tmp, "rw")) {
+      raf.seek (20);
+      raf.writeInt (nPhrases);
+    }
+
+    if (! tmp.renameTo (file)) {
+      tmp.delete ();
+      throw new IOException ("Unable to write " + file);
+    }
+  }
+
+  /**
+   *  Find the most frequent adjacent term pairs of a field.  Only pairs
+   *  of the field's m most frequent terms are counted, in an m x m
+   *  array, so memory does not grow with the vocabulary.  A pair occurs
+   *  at most as often as its rarer term, so every pair that occurs more
+   *  often than the most frequent term that is not counted is found.
+   *  Pairs with the same frequency are ordered by their terms, so the
+   *  result does not depend on hashing.
+   *  @return Up to n {term1, term2} pairs, most frequent first.
+   */
+  private static List<String[]> getFrequentPairs (String field, int n, int m)
+    throws IOException {
+
+    final String[] terms = getFrequentTerms (field, m);
+    final int width = terms.length;
+    final int[] counts = new int[width * width];
+    long[] locs = new long[64];
+
+    //  Merge the postings of the terms a document at a time.  Each
+    //  location is encoded as (position << 32 | term index), so sorting
+    //  a document's locations puts adjacent terms next to each other.
+    //  Stopwords leave gaps in the positions, so pairs that span them
+    //  are not adjacent.
+
+    for (AtomicReaderContext leaf : Idx.INDEXREADER.leaves ()) {
+      Terms leafTerms = leaf.reader ().terms (field);
+
+      if (leafTerms == null) {
+        continue;
+      }
+
+      Bits liveDocs = leaf.reader ().getLiveDocs ();
+      TermsEnum termsEnum = leafTerms.iterator (null);
+      DocsAndPositionsEnum[] postings = new DocsAndPositionsEnum[width];
+      QryArgHeap docHeap = new QryArgHeap (width);
+
+      for (int i = 0; i < width; i++) {
+        if (termsEnum.seekExact (new BytesRef (terms[i]), true)) {
+          postings[i] = termsEnum.docsAndPositions (liveDocs, null, 0);
+
+          if (postings[i] == null) {
+            throw new IOException ("Field " + field + " has no positions");
+          }
+
+          int docid = postings[i].nextDoc ();
+
+          if (docid != DocIdSetIterator.NO_MORE_DOCS) {
+            docHeap.add (i, docid);
+          }
+        }
+      }
+
+      while (docHeap.size () > 0) {
+        int docid = docHeap.topKey ();
+        int k = 0;
+
+        while ((docHeap.size () > 0) && (docHeap.topKey () == docid)) {
+          int i = docHeap.topArg ();
+          int tf = postings[i].freq ();
+
+          if (k + tf > locs.length) {
+            locs = Arrays.copyOf (locs, Math.max (k + tf, 2 * locs.length));
+          }
+
+          for (int j = 0; j < tf; j++) {
+            locs[k++] = ((long) postings[i].nextPosition () << 32) | i;
+          }
+
+          int next = postings[i].nextDoc ();
+
+          if (next == DocIdSetIterator.NO_MORE_DOCS) {
+            docHeap.removeTop ();
+          } else {
+            docHeap.replaceTopKey (next);
+          }
+        }
+
+        Arrays.sort (locs, 0, k);
+
+        for (int j = 1; j < k; j++) {
+          if ((locs[j] >>> 32) == (locs[j - 1] >>> 32) + 1) {
+            counts[(int) locs[j - 1] * width + (int) locs[j]]++;
+          }
+        }
+      }
+    }
+
+    //  Keep the n most frequent pairs in a heap whose top is the least
+    //  frequent of them.
+
+    final Comparator<Integer> order = new Comparator<Integer> () {
+      public int compare (Integer a, Integer b) {
+        int cmp = Integer.compare (counts[b], counts[a]);
+        return (cmp != 0) ? cmp : getKey (a).compareTo (getKey (b));
+      }
+
+      private String getKey (int pair) {
+        return terms[pair / width] + " " + terms[pair % width];
+      }
+    };
+
+    PriorityQueue<Integer> top =
+      new PriorityQueue<Integer> (n, Collections.reverseOrder (order));
+
+    for (int pair = 0; pair < counts.length; pair++) {
+      if (counts[pair] == 0) {
+        continue;
+      }
+
+      if (top.size () < n) {
+        top.add (pair);
+      } else if (order.compare (pair, top.peek ()) < 0) {
+        top.poll ();
+        top.add (pair);
+      }
+    }
+
+    List<Integer> sorted = new ArrayList<Integer> (top);
+    List<String[]> result = new ArrayList<String[]> ();
+
+    Collections.sort (sorted, order);
+
+    for (int pair : sorted) {
+      result.add (new String[] { terms[pair / width], terms[pair % width] });
+    }
+
+    return result;
+  }
+
+  /**
+   *  Find the most frequent terms of a field, by ctf.  Terms with the
+   *  same ctf are ordered by their strings.
+   *  @return Up to m terms, in no particular order.
+   */
+  private static String[] getFrequentTerms (String field, int m)
+    throws IOException {
+
+    Terms terms = MultiFields.getTerms (Idx.INDEXREADER, field);
+
+    if (terms == null) {
+      return new String[0];
+    }
+
+    //  A heap of the m most frequent terms seen so far, whose top is
+    //  the least frequent of them.
+
+    final Comparator<Map.Entry<String, Long>> order =
+      new Comparator<Map.Entry<String, Long>> () {
+        public int compare (Map.Entry<String, Long> a,
+                            Map.Entry<String, Long> b) {
+          int cmp = Long.compare (a.getValue (), b.getValue ());
+          return (cmp != 0) ? cmp : b.getKey ().compareTo (a.getKey ());
+        }
+      };
+
+    PriorityQueue<Map.Entry<String, Long>> top =
+      new PriorityQueue<Map.Entry<String, Long>> (m, order);
+    TermsEnum termsEnum = terms.iterator (null);
+    BytesRef term;
+
+    while ((term = termsEnum.next ()) != null) {
+      long ctf = termsEnum.totalTermFreq ();
+
+      if ((top.size () == m) && (ctf < top.peek ().getValue ())) {
+        continue;
+      }
+
+      Map.Entry<String, Long> entry =
+        new AbstractMap.SimpleImmutableEntry<String, Long> (
+          term.utf8ToString (), ctf);
+
+      if (top.size () < m) {
+        top.add (entry);
+      } else if (order.compare (entry, top.peek ()) > 0) {
+        top.poll ();
+        top.add (entry);
+      }
+    }
+
+    String[] result = new String[top.size ()];
+    int i = 0;
+
+    for (Map.Entry<String, Long> entry : top) {
+      result[i++] = entry.getKey ();
+    }
+
+    return result;
+  }
+
+  /**
+   *  Load a phrase index that was written by build.
+   *  @param file The phrase index file.
+   *  @throws IOException Error reading the file.
+   */
+  public PhraseIndex (File file) throws IOException {
+
+    try (DataInputStream in = new DataInputStream (
+           new BufferedInputStream (new FileInputStream (file)))) {
+
+      if ((in.readInt () != MAGIC) || (in.readInt () != VERSION)) {
+        throw new IOException ("Not a phrase index: " + file);
+      }
+
+      this.indexVersion = in.readLong ();
+      this.maxDoc = in.readInt ();
+
+      int nPhrases = in.readInt ();
+
+      for (int i = 0; i < nPhrases; i++) {
+        String key = getKey (in.readUTF (), in.readUTF (), in.readUTF ());
+        byte[] compressed = new byte[in.readInt ()];
+
+        in.readFully (compressed);
+        this.lists.put (key, compressed);
+        this.dfs.put (key, VByte.read (ByteBuffer.wrap (compressed)));
+      }
+    }
+  }
+
+  /**
+   *  Get the key of a phrase.
+   */
+  private static String getKey (String field, String term1, String term2) {
+    return field + '\0' + term1 + ' ' + term2;
+  }
+
+  /**
+   *  Get the version of the Lucene index that the phrase index was
+   *  built from.
+   */
+  public long getIndexVersion () {
+    return this.indexVersion;
+  }
+
+  /**
+   *  Get the number of document ids of the index that the phrase index
+   *  was built from, including deleted documents.
+   */
+  public int getMaxDoc () {
+    return this.maxDoc;
+  }
+
+  /**
+   *  Get the df of a phrase.
+   *  @param field The field that the phrase occurs in.
+   *  @param term1 The first term of the phrase.
+   *  @param term2 The second term of the phrase.
+   *  @return The df, or 0 if the phrase is not in the phrase index.
+   */
+  public int getDf (String field, String term1, String term2) {
+    Integer df = this.dfs.get (getKey (field, term1, term2));
+    return (df == null) ? 0 : df;
+  }
+
+  /**
+   *  Get the inverted list of a phrase, i.e., of #NEAR/1 (term1 term2).
+   *  @param field The field that the phrase occurs in.
+   *  @param term1 The first term of the phrase.
+   *  @param term2 The second term of the phrase.
+   *  @return The inverted list, or null if the phrase is not in the
+   *          phrase index.
+   */
+  public InvList getInvList (String field, String term1, String term2) {
+    byte[] compressed = this.lists.get (getKey (field, term1, term2));
+    return (compressed == null) ? null : new InvList (field, compressed);
+  }
+
+}
@@ -101,6 +101,26 @@ public abstract class Qry {
     private boolean matchStored = false;    // Operators can cache matches
     private int matchingDocid;
 
+    /**
+     * docIteratorHasMatchMin keeps the arguments that may still match
+     * in a heap keyed by docid, so that finding the next match and
+     * advancing only touch the arguments at the front, not all of them.
+     * Keys are lower bounds on the arguments' docids (an argument may
+     * be advanced directly, e.g., by an evaluator), so the arguments
+     * that tie for the smallest key are checked before it is used.
+     * null until docIteratorHasMatchMin is first called.
+     */
+    private QryArgHeap argHeap = null;
+    private int[] argHeapBuffer = null;
+
+    /**
+     * The order in which docIteratorHasMatchAll visits the arguments.
+     * The first argument leads, and the others are advanced to its
+     * docid, so the order is usually rarest argument first.  null
+     * means argument order.  Set by QryOptimizer.
+     */
+    private int[] matchAllOrder = null;
+
     //  --------------- Methods ---------------------------------------
 
     /**
@@ -190,8 +210,23 @@ public abstract class Qry {
      */
     public void docIteratorAdvancePast(int docid) {
 
-        for (Qry q_i : this.args) {
-            q_i.docIteratorAdvancePast(docid);
+        if (this.argHeap != null) {
+            while ((this.argHeap.size() > 0) && (this.argHeap.topKey() <= docid)) {
+                this.args.get(this.argHeap.topArg()).docIteratorAdvancePast(docid);
+
+                //  No document follows Integer.MAX_VALUE, and docid + 1
+                //  would overflow, so the argument is exhausted.
+
+                if (docid == Integer.MAX_VALUE) {
+                    this.argHeap.removeTop();
+                } else {
+                    this.argHeap.replaceTopKey(docid + 1);
+                }
+            }
+        } else {
+            for (Qry q_i : this.args) {
+                q_i.docIteratorAdvancePast(docid);
+            }
         }
 
         this.docIteratorClearMatchCache();
@@ -205,13 +240,29 @@ public abstract class Qry {
      */
     public void docIteratorAdvanceTo(int docid) {
 
-        for (Qry q_i : this.args) {
-            q_i.docIteratorAdvanceTo(docid);
+        if (this.argHeap != null) {
+            while ((this.argHeap.size() > 0) && (this.argHeap.topKey() < docid)) {
+                this.args.get(this.argHeap.topArg()).docIteratorAdvanceTo(docid);
+                this.argHeap.replaceTopKey(docid);
+            }
+        } else {
+            for (Qry q_i : this.args) {
+                q_i.docIteratorAdvanceTo(docid);
+            }
         }
 
         this.docIteratorClearMatchCache();
     }
 
+    /**
+     * Discard the argument heap of docIteratorHasMatchMin, e.g., when
+     * the query operator is initialized again.
+     */
+    protected void docIteratorClearArgHeap() {
+        this.argHeap = null;
+        this.argHeapBuffer = null;
+    }
+
     /**
      * Clear the docIterator's matching docid cache.  The cache should
      * be cleared whenever a docIterator is advanced.
@@ -254,7 +305,30 @@ public abstract class Qry {
      */
     protected boolean docIteratorHasMatchAll(RetrievalModel r) {
 
+        int docid = this.docIteratorNextMatchAll(r);
+
+        if (docid == Qry.INVALID_DOCID) {
+            return false;
+        }
+
+        docIteratorSetMatchCache(docid);
+        return true;
+    }
+
+    /**
+     * Advance the arguments to the next document that all of them
+     * match, visiting them in matchAllOrder.  The match cache is not
+     * changed, so query operators that have their own iterators (e.g.,
+     * #NEAR) can use it to find candidate documents.
+     *
+     * @param r The retrieval model that determines what is a match
+     * @return The matching docid, or INVALID_DOCID if there is none.
+     */
+    protected int docIteratorNextMatchAll(RetrievalModel r) {
+
         boolean matchFound = false;
+        int[] order = this.matchAllOrder;
+        int docid_0 = Qry.INVALID_DOCID;
 
         // Keep trying until a match is found or no match is possible.
 
@@ -262,13 +336,13 @@ public abstract class Qry {
 
             // Get the docid of the first query argument.
 
-            Qry q_0 = this.args.get(0);
+            Qry q_0 = this.args.get((order == null) ? 0 : order[0]);
 
             if (!q_0.docIteratorHasMatch(r)) {
-                return false;
+                return Qry.INVALID_DOCID;
             }
 
-            int docid_0 = q_0.docIteratorGetMatch();
+            docid_0 = q_0.docIteratorGetMatch();
 
             // Other query arguments must match the docid of the first query
             // argument.
@@ -276,12 +350,12 @@ public abstract class Qry {
             matchFound = true;
 
             for (int i = 1; i < this.args.size(); i++) {
-                Qry q_i = this.args.get(i);
+                Qry q_i = this.args.get((order == null) ? i : order[i]);
 
                 q_i.docIteratorAdvanceTo(docid_0);
 
                 if (!q_i.docIteratorHasMatch(r)) {    // If any argument is exhausted
-                    return false;                // there are no more matches.
+                    return Qry.INVALID_DOCID;        // there are no more matches.
                 }
 
                 int docid_i = q_i.docIteratorGetMatch();
@@ -292,13 +366,9 @@ public abstract class Qry {
                     break;
                 }
             }
-
-            if (matchFound) {
-                docIteratorSetMatchCache(docid_0);
-            }
         }
 
-        return true;
+        return docid_0;
     }
 
     /**
@@ -311,6 +381,12 @@ public abstract class Qry {
      */
     protected boolean docIteratorHasMatchFirst(RetrievalModel r) {
 
+        //  The match only changes when the iterator is advanced.
+
+        if (this.docIteratorHasMatchCache()) {
+            return true;
+        }
+
         Qry q_0 = this.args.get(0);
 
         if (q_0.docIteratorHasMatch(r)) {
@@ -333,27 +409,61 @@ public abstract class Qry {
      */
     protected boolean docIteratorHasMatchMin(RetrievalModel r) {
 
-        int minDocid = Qry.INVALID_DOCID;
+        //  The match only changes when the iterator is advanced, so
+        //  parents and getScore can ask again without rescanning the
+        //  arguments.
+
+        if (this.docIteratorHasMatchCache()) {
+            return true;
+        }
 
-        for (int i = 0; i < this.args.size(); i++) {
-            Qry q_i = this.args.get(i);
+        if (this.argHeap == null) {
+            this.argHeap = new QryArgHeap(this.args.size());
+            this.argHeapBuffer = new int[this.args.size()];
 
-            if (q_i.docIteratorHasMatch(r)) {
-                int q_iDocid = q_i.docIteratorGetMatch();
+            for (int i = 0; i < this.args.size(); i++) {
+                Qry q_i = this.args.get(i);
 
-                if ((minDocid > q_iDocid) ||
-                        (minDocid == Qry.INVALID_DOCID)) {
-                    minDocid = q_iDocid;
+                if (q_i.docIteratorHasMatch(r)) {
+                    this.argHeap.add(i, q_i.docIteratorGetMatch());
                 }
             }
         }
 
-        if (minDocid != Qry.INVALID_DOCID) {
-            docIteratorSetMatchCache(minDocid);
-            return true;
-        } else {
-            return false;
+        //  Check every argument that ties for the smallest key.  Each one
+        //  is put back with its actual docid, or dropped if it has no
+        //  more matches.  Checking also caches each argument's match,
+        //  which getScore methods use to see which arguments match.
+
+        while (this.argHeap.size() > 0) {
+            int minDocid = this.argHeap.topKey();
+            int n = 0;
+
+            while ((this.argHeap.size() > 0) && (this.argHeap.topKey() == minDocid)) {
+                this.argHeapBuffer[n++] = this.argHeap.topArg();
+                this.argHeap.removeTop();
+            }
+
+            boolean found = false;
+
+            for (int j = 0; j < n; j++) {
+                Qry q_i = this.args.get(this.argHeapBuffer[j]);
+
+                if (q_i.docIteratorHasMatch(r)) {
+                    int q_iDocid = q_i.docIteratorGetMatch();
+
+                    this.argHeap.add(this.argHeapBuffer[j], q_iDocid);
+                    found |= (q_iDocid == minDocid);
+                }
+            }
+
+            if (found) {
+                docIteratorSetMatchCache(minDocid);
+                return true;
+            }
         }
+
+        return false;
     }
 
     /**
@@ -412,10 +522,22 @@ public abstract class Qry {
      */
     public void removeArg(int i) {
         this.args.remove(i);
+        this.matchAllOrder = null;
     }
 
     ;
 
+    /**
+     * Set the order in which docIteratorHasMatchAll visits the
+     * arguments.  It is reset if an argument is removed.
+     *
+     * @param order A permutation of the argument indexes, or null for
+     *              argument order.
+     */
+    public void setMatchAllOrder(int[] order) {
+        this.matchAllOrder = order;
+    }
+
     /**
      * Every operator must have a display name that can be used by
      * toString for debugging or other user feedback.
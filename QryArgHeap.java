@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+/**
+ *  A min-heap of query argument indexes, keyed by an int such as the
+ *  argument's current docid or location.  It is used to merge the
+ *  iterators of many arguments (e.g., for #OR, #SYN, and Indri #AND)
+ *  without scanning every argument for every document.  Entries are
+ *  stored in two parallel int arrays, so the heap does not box.
+ */
+public class QryArgHeap {
+
+    //  --------------- Constants and variables ---------------------
+
+    private int size = 0;
+    private int[] args;
+    private int[] keys;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     *  @param capacity The maximum number of entries.
+     */
+    public QryArgHeap(int capacity) {
+        this.args = new int[Math.max(capacity, 1)];
+        this.keys = new int[this.args.length];
+    }
+
+    /**
+     *  Remove all entries.
+     */
+    public void clear() {
+        this.size = 0;
+    }
+
+    /**
+     *  Add an entry.
+     *  @param arg An argument index.
+     *  @param key The argument's key.
+     */
+    public void add(int arg, int key) {
+        int i = this.size++;
+
+        //  Sift up.
+
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+
+            if (this.keys[parent] <= key)
+                break;
+
+            this.args[i] = this.args[parent];
+            this.keys[i] = this.keys[parent];
+            i = parent;
+        }
+
+        this.args[i] = arg;
+        this.keys[i] = key;
+    }
+
+    /**
+     *  Get the number of entries.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     *  Get the argument index of the entry with the smallest key.
+     */
+    public int topArg() {
+        return this.args[0];
+    }
+
+    /**
+     *  Get the smallest key.
+     */
+    public int topKey() {
+        return this.keys[0];
+    }
+
+    /**
+     *  Remove the entry with the smallest key.
+     */
+    public void removeTop() {
+        this.size--;
+
+        if (this.size > 0)
+            this.siftDown(this.args[this.size], this.keys[this.size]);
+    }
+
+    /**
+     *  Change the key of the entry with the smallest key, e.g., after
+     *  its argument was advanced.
+     *  @param key The new key.  It may be larger or smaller.
+     */
+    public void replaceTopKey(int key) {
+        int arg = this.args[0];
+
+        if ((this.size > 1) && (key > this.keys[0])) {
+            this.siftDown(arg, key);
+        } else {
+            this.keys[0] = key;
+        }
+    }
+
+    /**
+     *  Put an entry at the root, and move it down to its place.
+     */
+    private void siftDown(int arg, int key) {
+        int i = 0;
+        int half = this.size >>> 1;
+
+        while (i < half) {
+            int child = 2 * i + 1;
+
+            if ((child + 1 < this.size) && (this.keys[child + 1] < this.keys[child]))
+                child++;
+
+            if (key <= this.keys[child])
+                break;
+
+            this.args[i] = this.args[child];
+            this.keys[i] = this.keys[child];
+            i = child;
+        }
+
+        this.args[i] = arg;
+        this.keys[i] = key;
+    }
+}
@@ -4,7 +4,9 @@
  */
 
 import java.io.*;
+import java.lang.reflect.Method;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.apache.lucene.analysis.Analyzer.TokenStreamComponents;
 import org.apache.lucene.analysis.TokenStream;
@@ -56,8 +58,67 @@ public class QryEval {
     private static final String[] TEXT_FIELDS =
             {"body", "title", "url", "inlink"};
 
+    /**
+     *  The fields that query terms may name.
+     */
+    private static final String[] QUERY_FIELDS =
+            {"url", "keywords", "title", "body", "inlink"};
+
+    /**
+     *  The number of documents that are printed for each query.
+     */
+    private static final int MAX_RESULTS = 100;
+
     private static PageRankScoreMap pagerankScoreMap;
 
+    /**
+     *  If true, BM25 #SUM queries are evaluated with Block-Max WAND,
+     *  provided that block-max metadata is stored, i.e., a native index
+     *  is open or the InvListCache is enabled.
+     */
+    private static boolean blockMaxWand = false;
+
+    /**
+     *  If true, Indri #AND and #WAND queries are evaluated with MaxScore.
+     */
+    private static boolean indriMaxScore = false;
+
+    /**
+     *  If true, queries are also optimized by QryOptimizer.  It is on
+     *  by default only if a phrase index is open, because QryOptimizer
+     *  substitutes the phrase index's inverted lists.
+     */
+    private static boolean queryOptimizer = false;
+
+    /**
+     *  If true, the plan and estimated cost of each query are shown.
+     */
+    private static boolean showQueryPlan = false;
+
+    /**
+     *  How flat queries are evaluated:  "daat" (document-at-a-time),
+     *  "taat" (term-at-a-time whenever possible), or "auto" (chosen
+     *  per query by TermAtATime.isPreferred).
+     */
+    private static String queryEvaluation = "daat";
+
+    /**
+     *  The number of queries that are evaluated at once.
+     */
+    private static int queryThreads = 1;
+
+    /**
+     *  If true, parallel queries run on virtual threads.
+     */
+    private static boolean virtualQueryThreads = false;
+
+    /**
+     *  The number of docid ranges that one query is split into.  Each
+     *  range is evaluated on intraQueryPool.
+     */
+    private static int intraQueryThreads = 1;
+    private static ForkJoinPool intraQueryPool = null;
+
     //  --------------- Methods ---------------------------------------
 
     /**
@@ -91,7 +152,93 @@ public class QryEval {
         ANALYZER.setStopwordRemoval(true);
         ANALYZER.setStemmer(EnglishAnalyzerConfigurable.StemmerType.KSTEM);
 
-        Idx.initialize(parameters.get("indexPath"));
+        //  Optionally preload document lengths into columns.
+
+        DocLengthStore.Columns lengthColumns = DocLengthStore.Columns.NONE;
+
+        if (parameters.containsKey("docLengthColumns")) {
+            lengthColumns = DocLengthStore.Columns.valueOf(
+                    parameters.get("docLengthColumns").trim().toUpperCase());
+        }
+
+        Idx.initialize(parameters.get("indexPath"), lengthColumns);
+
+        if (lengthColumns != DocLengthStore.Columns.NONE) {
+            System.out.println("Document length columns:  " +
+                    Idx.getFieldLengthBytes() + " bytes");
+        }
+
+        if (parameters.containsKey("externalIdColumnPath")) {
+            Idx.initializeExternalIdColumn(parameters.get("externalIdColumnPath"));
+        }
+
+        if (parameters.containsKey("nativeIndexPath")) {
+            Idx.initializeNativeIndex(parameters.get("nativeIndexPath"));
+        }
+
+        if (parameters.containsKey("phraseIndexPath")) {
+            Idx.initializePhraseIndex(parameters.get("phraseIndexPath"));
+        }
+
+        if (parameters.containsKey("externalIdOrdinalsPath")) {
+            Idx.initializeExternalIdOrdinals(parameters.get("externalIdOrdinalsPath"));
+        }
+
+        //  Optionally keep term inverted lists across queries.
+
+        if (parameters.containsKey("invListCacheMB")) {
+            long cacheMB = Long.parseLong(parameters.get("invListCacheMB"));
+            InvListCache.initialize(cacheMB * 1024L * 1024L);
+        }
+
+        //  Optionally evaluate queries in parallel.  ANALYZER is
+        //  configured above, before any query thread starts, and it
+        //  creates new token stream components for each query, so the
+        //  query threads can share it.
+
+        if (parameters.containsKey("queryThreads")) {
+            queryThreads = Integer.parseInt(parameters.get("queryThreads").trim());
+        }
+
+        if (parameters.containsKey("queryThreadType")) {
+            virtualQueryThreads =
+                    parameters.get("queryThreadType").trim().equalsIgnoreCase("virtual");
+        }
+
+        if (parameters.containsKey("intraQueryThreads")) {
+            intraQueryThreads = Integer.parseInt(parameters.get("intraQueryThreads").trim());
+            if (intraQueryThreads > 1) {
+                intraQueryPool = new ForkJoinPool(intraQueryThreads);
+            }
+        }
+
+        if (parameters.containsKey("blockMaxWand")) {
+            blockMaxWand = Boolean.parseBoolean(parameters.get("blockMaxWand"));
+        }
+
+        if (parameters.containsKey("indriMaxScore")) {
+            indriMaxScore = Boolean.parseBoolean(parameters.get("indriMaxScore"));
+        }
+
+        queryOptimizer = parameters.containsKey("phraseIndexPath");
+
+        if (parameters.containsKey("queryOptimizer")) {
+            queryOptimizer = Boolean.parseBoolean(parameters.get("queryOptimizer"));
+        }
+
+        if (parameters.containsKey("showQueryPlan")) {
+            showQueryPlan = Boolean.parseBoolean(parameters.get("showQueryPlan"));
+        }
+
+        if (parameters.containsKey("queryEvaluation")) {
+            queryEvaluation = parameters.get("queryEvaluation").trim().toLowerCase();
+            if (!queryEvaluation.equals("daat") && !queryEvaluation.equals("taat") &&
+                    !queryEvaluation.equals("auto")) {
+                throw new IllegalArgumentException
+                        ("Unknown queryEvaluation: " + queryEvaluation);
+            }
+        }
+
         RetrievalModel model = initializeRetrievalModel(parameters);
 
         // if exists initial ranking file, process it
@@ -165,6 +312,9 @@ public class QryEval {
                     parameters, rankingResult, null);
         }
         //  Clean up.
+        if (InvListCache.isEnabled()) {
+            System.out.println(InvListCache.getStatistics());
+        }
         timer.stop();
         System.out.println("Time:  " + timer);
     }
@@ -534,11 +684,7 @@ public class QryEval {
                     term = token.substring(0, delimiter);
                 }
 
-                if ((field.compareTo("url") != 0) &&
-                        (field.compareTo("keywords") != 0) &&
-                        (field.compareTo("title") != 0) &&
-                        (field.compareTo("body") != 0) &&
-                        (field.compareTo("inlink") != 0)) {
+                if (!Arrays.asList(QUERY_FIELDS).contains(field)) {
                     throw new IllegalArgumentException("Error: Unknown field " + token);
                 }
 
@@ -601,40 +747,246 @@ public class QryEval {
      *
      * @param qString A string that contains a query.
      * @param model   The retrieval model determines how matching and scoring is done.
-     * @return Search results
+     * @param depth   The number of documents to return.
+     * @return The top depth documents, sorted by score and external id
      * @throws IOException Error accessing the index
      */
-    static ScoreList processQuery(String qString, RetrievalModel model)
+    static ScoreList processQuery(String qString, RetrievalModel model, int depth)
+            throws IOException {
+        return processQuery(qString, model, depth, null);
+    }
+
+    /**
+     * Process one query, and add its diagnostic output to the output
+     * of the query instead of printing it.
+     *
+     * @param qString A string that contains a query.
+     * @param model   The retrieval model determines how matching and scoring is done.
+     * @param depth   The number of documents to return.
+     * @param output  The output of the query, or null to print diagnostics now.
+     * @return The top depth documents, sorted by score and external id
+     * @throws IOException Error accessing the index
+     */
+    static ScoreList processQuery(String qString, RetrievalModel model, int depth,
+                                  QueryOutput output)
             throws IOException {
 
         Qry q = parseQuery(qString, model);
         q = optimizeQuery(q);
 
+        if ((q != null) && queryOptimizer) {
+            q = QryOptimizer.optimize(q, model);
+        }
+
         // Show the query that is evaluated
 
-        System.out.println("    --> " + q);
+        println(output, "    --> " + q);
+
+        if ((q != null) && showQueryPlan) {
+            println(output, "    plan: " + QryOptimizer.explain(q, model) +
+                    ", estimated cost " + QryOptimizer.estimateCost(q) + " postings");
+        }
 
         if (q != null) {
 
-            ScoreList r = new ScoreList();
+            if ((q.args.size() > 0) && blockMaxWand &&
+                    (model instanceof RetrievalModelBM25) &&
+                    BlockMaxWand.canEvaluate(q)) {
+                return BlockMaxWand.evaluate(q, (RetrievalModelBM25) model, depth);
+            }
 
-            if (q.args.size() > 0) {        // Ignore empty queries
+            if ((q.args.size() > 0) && indriMaxScore &&
+                    IndriMaxScore.canEvaluate(q, model)) {
+                return IndriMaxScore.evaluate(q, (RetrievalModelIndri) model, depth);
+            }
 
-                q.initialize(model);
+            if ((queryEvaluation.equals("taat") && TermAtATime.canEvaluate(q, model)) ||
+                    (queryEvaluation.equals("auto") && TermAtATime.isPreferred(q, model))) {
+                return TermAtATime.evaluate(q, model, depth);
+            }
 
-                while (q.docIteratorHasMatch(model)) {
-                    int docid = q.docIteratorGetMatch();
-                    double score = ((QrySop) q).getScore(model);
-                    r.add(docid, score);
-                    q.docIteratorAdvancePast(docid);
-                }
+            if ((q.args.size() > 0) && (intraQueryThreads > 1)) {
+                return processQueryPartitioned(q, qString, model, depth);
             }
 
-            return r;
+            TopKCollector topK = new TopKCollector(depth);
+
+            if (q.args.size() > 0) {        // Ignore empty queries
+                evaluateRange(q, model, 0, Integer.MAX_VALUE, topK);
+            }
+
+            return topK.toScoreList();
         } else
             return null;
     }
 
+    /**
+     * Evaluate the documents of a query whose docids are in [low, high).
+     *
+     * @param q     An optimized query that has not been initialized.
+     * @param model The retrieval model determines how matching and scoring is done.
+     * @param low   The first docid to evaluate.
+     * @param high  The docid after the last docid to evaluate.
+     * @param topK  Collects the matching documents.
+     * @throws IOException Error accessing the index
+     */
+    static void evaluateRange(Qry q, RetrievalModel model, int low, int high,
+                              TopKCollector topK)
+            throws IOException {
+
+        q.initialize(model);
+
+        if (low > 0)
+            q.docIteratorAdvanceTo(low);
+
+        while (q.docIteratorHasMatch(model)) {
+            int docid = q.docIteratorGetMatch();
+            if (docid >= high)
+                break;
+            double score = ((QrySop) q).getScore(model);
+            topK.add(docid, score);
+            q.docIteratorAdvancePast(docid);
+        }
+    }
+
+    /**
+     * Evaluate one query in parallel.  The docid space is split into
+     * intraQueryThreads ranges.  If the index has at least that many
+     * leaves (segments), range boundaries are moved to the start of a
+     * leaf, so that a range's cursors stay in their own leaves.  Each
+     * range is evaluated by its own copy of the query tree, and the top
+     * documents of the ranges are merged.
+     * <p>
+     * The inverted list operators (#NEAR, #SYN, materialized terms,
+     * etc.) are evaluated once, before the ranges, and the copies share
+     * their read-only inverted lists; only their iterators are separate.
+     * Streaming terms have no inverted list, so each copy opens its own
+     * postings.  Every copy reads complete inverted lists, so df, ctf,
+     * and other corpus statistics are the same as in sequential
+     * evaluation, and so are the scores.
+     *
+     * @param q       The optimized query, used for the first range.
+     * @param qString The query string, parsed again for the other ranges.
+     * @param model   The retrieval model determines how matching and scoring is done.
+     * @param depth   The number of documents to return.
+     * @return The top depth documents, sorted by score and external id
+     * @throws IOException Error accessing the index
+     */
+    static ScoreList processQueryPartitioned(final Qry q, final String qString,
+                                             final RetrievalModel model, final int depth)
+            throws IOException {
+
+        int maxDoc = Idx.INDEXREADER.maxDoc();
+        int n = intraQueryThreads;
+        List<ForkJoinTask<ScoreList>> ranges = new ArrayList<>();
+
+        int[] bounds = new int[n + 1];
+        int[] docBases = Idx.getLeafDocBases();
+
+        for (int i = 1; i < n; i++) {
+            bounds[i] = (int) ((long) maxDoc * i / n);
+
+            if (docBases.length >= n)
+                bounds[i] = docBases[Idx.getLeaf(bounds[i])];
+        }
+
+        bounds[n] = Integer.MAX_VALUE;
+
+        //  Evaluate the inverted list operators once.  The copies of the
+        //  query have the same operators, in the same order.  Streaming
+        //  terms have no list to share, so each range initializes them.
+
+        List<QryIop> iops = new ArrayList<>();
+        getInvertedListOperators(q, iops);
+
+        final InvList[] lists = new InvList[iops.size()];
+
+        for (int i = 0; i < lists.length; i++) {
+            QryIop iop = iops.get(i);
+
+            if ((iop instanceof QryIopTerm) && ((QryIopTerm) iop).isStreaming())
+                continue;
+
+            iop.initialize(model);
+            lists[i] = iop.getInvertedList();
+
+            if (lists[i] != null)
+                iop.setEvaluatedList(lists[i]);
+        }
+
+        for (int i = 0; i < n; i++) {
+            final int range = i;
+            final int low = bounds[i];
+            final int high = bounds[i + 1];
+
+            ranges.add(intraQueryPool.submit(new Callable<ScoreList>() {
+                public ScoreList call() throws IOException {
+                    Qry copy = (range == 0) ? q : optimizeQuery(parseQuery(qString, model));
+
+                    if ((range > 0) && queryOptimizer) {
+                        copy = QryOptimizer.optimize(copy, model);
+                    }
+
+                    if (range > 0) {
+                        List<QryIop> copyIops = new ArrayList<>();
+                        getInvertedListOperators(copy, copyIops);
+
+                        if (copyIops.size() != lists.length)
+                            throw new IllegalStateException("Query copies differ: " + qString);
+
+                        for (int j = 0; j < lists.length; j++) {
+                            if (lists[j] != null)
+                                copyIops.get(j).setEvaluatedList(lists[j]);
+                        }
+                    }
+
+                    TopKCollector topK = new TopKCollector(depth);
+                    evaluateRange(copy, model, low, high, topK);
+                    return topK.toScoreList();
+                }
+            }));
+        }
+
+        //  Merge the top documents of the ranges.
+
+        TopKCollector topK = new TopKCollector(depth);
+
+        try {
+            for (ForkJoinTask<ScoreList> range : ranges) {
+                ScoreList r = range.get();
+                for (int i = 0; i < r.size(); i++)
+                    topK.add(r.getDocid(i), r.getDocidScore(i));
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while evaluating a query", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            throw new IllegalStateException("Query evaluation failed", ex.getCause());
+        }
+
+        return topK.toScoreList();
+    }
+
+    /**
+     * Get the inverted list operators of a query that are not arguments
+     * of other inverted list operators, in query order.
+     *
+     * @param q    A query.
+     * @param iops Receives the inverted list operators.
+     */
+    static void getInvertedListOperators(Qry q, List<QryIop> iops) {
+
+        if (q instanceof QryIop) {
+            iops.add((QryIop) q);
+            return;
+        }
+
+        for (Qry q_i : q.args)
+            getInvertedListOperators(q_i, iops);
+    }
+
     /**
      * Load from input file and return internal doc id list
      *
@@ -644,30 +996,42 @@ public class QryEval {
     static HashMap<String, ArrayList<WeightedDoc>> processRankingFile(
             String fbInitialRankingFile, int fbDocs) throws IOException {
         HashMap<String, ArrayList<WeightedDoc>> weightedDocsList = new HashMap<>();
+        ArrayList<String> qids = new ArrayList<>();
+        ArrayList<String> externalIds = new ArrayList<>();
+        ArrayList<Double> scores = new ArrayList<>();
         try (BufferedReader infile
                      = new BufferedReader(new FileReader(fbInitialRankingFile))) {
             String doc;
             while ((doc = infile.readLine()) != null && doc.length() > 0) {
                 // split on any whitespace chars
                 String[] entries = doc.split("\\s+");
-                String qid = entries[0];
-                ArrayList<WeightedDoc> weightedDocs = weightedDocsList.get(qid);
-                if(weightedDocs == null || weightedDocs.size() < fbDocs) {
-                    String externalId = entries[2];
-                    double score = Double.parseDouble(entries[4]);
-                    int internalId = Idx.getInternalDocid(externalId);
-                    WeightedDoc newDoc = new WeightedDoc(internalId, score);
-                    if(weightedDocs == null) {
-                        weightedDocs = new ArrayList<>();
-                        weightedDocsList.put(qid, weightedDocs);
-                    }
-                    weightedDocs.add(newDoc);
-                }
+                qids.add(entries[0]);
+                externalIds.add(entries[2]);
+                scores.add(Double.parseDouble(entries[4]));
             }
             infile.close();
         } catch (Exception e) {
             e.printStackTrace();
         }
+
+        // resolve all of the external ids in one batch, then keep the
+        // first fbDocs documents of each query that were found, so that
+        // a missing document does not use up a feedback slot
+        int[] internalIds = Idx.getInternalDocids(externalIds);
+        for (int i = 0; i < internalIds.length; i++) {
+            if (internalIds[i] < 0) {
+                System.err.println("External id not found: " + externalIds.get(i));
+                continue;
+            }
+            ArrayList<WeightedDoc> weightedDocs = weightedDocsList.get(qids.get(i));
+            if(weightedDocs == null) {
+                weightedDocs = new ArrayList<>();
+                weightedDocsList.put(qids.get(i), weightedDocs);
+            }
+            if (weightedDocs.size() < fbDocs) {
+                weightedDocs.add(new WeightedDoc(internalIds[i], scores.get(i)));
+            }
+        }
         return weightedDocsList;
     }
 
@@ -754,7 +1118,10 @@ public class QryEval {
     }
 
     /**
-     * Process the query file and output results.
+     * Process the query file and output results.  If the queryThreads
+     * parameter is greater than 1, queries are evaluated concurrently,
+     * but results are still written in query file order.  LETOR
+     * feature extraction always runs on one thread.
      *
      * @param queryFilePath
      * @param outputFilePath
@@ -770,6 +1137,11 @@ public class QryEval {
                                  HashMap<String, ArrayList<WeightedDoc>> rankingResult,
                                  FeatureExtractor extractor)
             throws IOException {
+        if (queryThreads > 1 && !(model instanceof RetrievalModelLetor)) {
+            processQueryFileParallel(queryFilePath, outputFilePath, model,
+                    parameters, rankingResult);
+            return;
+        }
         try (BufferedReader input =
                      new BufferedReader(new FileReader(queryFilePath))) {
             String qLine;
@@ -789,39 +1161,12 @@ public class QryEval {
 
                 System.out.println("Query " + qLine);
 
-                // query expansion
-                if (model instanceof RetrievalModelIndri &&
-                        parameters.containsKey("fb")) {
-                    boolean queryExpansion = Boolean.parseBoolean(parameters.get("fb"));
-                    if (queryExpansion) {
-                        ArrayList<WeightedDoc> topDocs;
-                        int fbTerms = Integer.parseInt(parameters.get("fbTerms"));
-                        double fbMu = Double.parseDouble(parameters.get("fbMu"));
-                        double fbOriginWeight = Double.parseDouble(parameters.get("fbOrigWeight"));
-                        String fbOutputPath = parameters.get("fbExpansionQueryFile");
-                        if (rankingResult != null) {
-                            topDocs = rankingResult.get(qid);
-                        } else {
-                            int fbDocs = Integer.parseInt(parameters.get("fbDocs"));
-                            ScoreList initialResult = processQuery(query, model);
-                            initialResult.sort();
-                            topDocs = getTopDocs(initialResult, fbDocs);
-                        }
-                        // set the query to expanded query
-                        String expandedQuery = expandQuery(topDocs, fbTerms, fbMu);
-                        query = String.format("#wand(%.4f #and(%s) %.4f %s)", fbOriginWeight, query,
-                                (1.0 - fbOriginWeight), expandedQuery);
-                        System.out.println(query);
-                        printQuery(qid, expandedQuery, fbOutputPath);
-                    }
-                }
-
                 if (model instanceof RetrievalModelLetor) {
                     RetrievalModelBM25 bm25Model = ((RetrievalModelLetor) model).getBM25Model();
                     RetrievalModelIndri indriModel = ((RetrievalModelLetor) model).getIndriModel();
                     String[] queryTerms = tokenizeQuery(query);
-                    ScoreList r = processQuery(query, bm25Model);
-                    ArrayList<String> externalIds = getExternalIds(r, 100);
+                    ScoreList r = processQuery(query, bm25Model, MAX_RESULTS);
+                    ArrayList<String> externalIds = getExternalIds(r, MAX_RESULTS);
                     Integer qidInt = Integer.parseInt(qid);
                     extractor.extract(externalIds, queryTerms, bm25Model, indriModel,
                             qidInt, pagerankScoreMap, null);
@@ -830,11 +1175,9 @@ public class QryEval {
                 }
                 else {
                     // process one query
-                    ScoreList r = processQuery(query, model);
-                    if (r != null) {
-                        // output result to file
-                        printResults(qid, r, outputFilePath);
-                    }
+                    QueryOutput output = evaluateQuery(new QueryOutput(), qid, query,
+                            model, parameters, rankingResult);
+                    writeQueryOutput(output, outputFilePath, parameters);
                 }
             }
         } catch (IOException ex) {
@@ -842,6 +1185,210 @@ public class QryEval {
         }
     }
 
+    /**
+     * Evaluate the queries of a query file concurrently, and write
+     * their results in query file order.  Each query is parsed into its
+     * own operator tree, so queries share nothing but the index and the
+     * process-wide caches, which are thread-safe.
+     *
+     * @param queryFilePath
+     * @param outputFilePath
+     * @param model
+     * @param parameters   Parameters specified in the parameters file
+     * @param rankingResult preprocessed ranking results
+     * @throws IOException Error accessing the Lucene index.
+     */
+    static void processQueryFileParallel(String queryFilePath,
+                                         String outputFilePath,
+                                         final RetrievalModel model,
+                                         final Map<String, String> parameters,
+                                         final HashMap<String, ArrayList<WeightedDoc>> rankingResult)
+            throws IOException {
+        List<String> qLines = new ArrayList<>();
+        try (BufferedReader input =
+                     new BufferedReader(new FileReader(queryFilePath))) {
+            String qLine;
+            while ((qLine = input.readLine()) != null) {
+                if (qLine.indexOf(':') < 0) {
+                    throw new IllegalArgumentException
+                            ("Syntax error:  Missing ':' in query line.");
+                }
+                qLines.add(qLine);
+            }
+        }
+
+        //  Virtual threads are not limited by a pool size, so a
+        //  semaphore limits how many queries are evaluated at once.
+
+        final Semaphore permits = new Semaphore(queryThreads);
+        ExecutorService pool = newQueryPool();
+        List<Future<QueryOutput>> outputs = new ArrayList<>();
+
+        try {
+            for (final String qLine : qLines) {
+                outputs.add(pool.submit(new Callable<QueryOutput>() {
+                    public QueryOutput call() throws Exception {
+                        permits.acquire();
+                        try {
+                            int d = qLine.indexOf(':');
+                            QueryOutput output = new QueryOutput();
+                            output.println("Query " + qLine);
+                            return evaluateQuery(output, qLine.substring(0, d),
+                                    qLine.substring(d + 1), model,
+                                    parameters, rankingResult);
+                        } finally {
+                            permits.release();
+                        }
+                    }
+                }));
+            }
+
+            for (Future<QueryOutput> output : outputs) {
+                writeQueryOutput(output.get(), outputFilePath, parameters);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while evaluating queries", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException)
+                throw (IOException) ex.getCause();
+            throw new IllegalStateException("Query evaluation failed", ex.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Create the executor that evaluates queries in parallel.
+     *
+     * @return A pool of queryThreads platform threads, or a virtual
+     * thread per task executor if queryThreadType is virtual and the
+     * Java runtime supports it.
+     */
+    private static ExecutorService newQueryPool() {
+        if (virtualQueryThreads) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException ex) {
+                System.err.println("Virtual threads are not available.  " +
+                        "Using platform threads.");
+            }
+        }
+        return Executors.newFixedThreadPool(queryThreads);
+    }
+
+    /**
+     * The output of one query:  the lines that it prints, its
+     * expansion query, if query expansion is used, and its results in
+     * trec_eval format.
+     */
+    static class QueryOutput {
+        String qid;
+        StringBuilder log = new StringBuilder();
+        String expansion;
+        String results;
+
+        /**
+         * Add a line that is printed when the output is written.
+         *
+         * @param line The line.
+         */
+        void println(String line) {
+            this.log.append(line).append('\n');
+        }
+    }
+
+    /**
+     * Print a diagnostic line now, or add it to the output of a query.
+     *
+     * @param output The output of the query, or null.
+     * @param line The line.
+     */
+    private static void println(QueryOutput output, String line) {
+        if (output == null) {
+            System.out.println(line);
+        } else {
+            output.println(line);
+        }
+    }
+
+    /**
+     * Expand (if feedback is enabled) and evaluate one query.  The
+     * output, including the lines that would be printed, is returned
+     * instead of written, so that queries can be evaluated in any
+     * order.
+     *
+     * @param output The output of the query, which may already have lines.
+     * @param qid The query id.
+     * @param query The query.
+     * @param model The retrieval model.
+     * @param parameters Parameters specified in the parameters file
+     * @param rankingResult preprocessed ranking results
+     * @return The query output.
+     * @throws IOException Error accessing the Lucene index.
+     */
+    static QueryOutput evaluateQuery(QueryOutput output, String qid, String query,
+                                     RetrievalModel model,
+                                     Map<String, String> parameters,
+                                     HashMap<String, ArrayList<WeightedDoc>> rankingResult)
+            throws IOException {
+        output.qid = qid;
+
+        // query expansion
+        if (model instanceof RetrievalModelIndri &&
+                parameters.containsKey("fb")) {
+            boolean queryExpansion = Boolean.parseBoolean(parameters.get("fb"));
+            if (queryExpansion) {
+                ArrayList<WeightedDoc> topDocs;
+                int fbTerms = Integer.parseInt(parameters.get("fbTerms"));
+                double fbMu = Double.parseDouble(parameters.get("fbMu"));
+                double fbOriginWeight = Double.parseDouble(parameters.get("fbOrigWeight"));
+                if (rankingResult != null) {
+                    topDocs = rankingResult.get(qid);
+                } else {
+                    int fbDocs = Integer.parseInt(parameters.get("fbDocs"));
+                    ScoreList initialResult = processQuery(query, model, fbDocs, output);
+                    topDocs = getTopDocs(initialResult, fbDocs);
+                }
+                // set the query to expanded query
+                String expandedQuery = expandQuery(topDocs, fbTerms, fbMu);
+                query = String.format("#wand(%.4f #and(%s) %.4f %s)", fbOriginWeight, query,
+                        (1.0 - fbOriginWeight), expandedQuery);
+                output.println(query);
+                output.expansion = formatQuery(qid, expandedQuery);
+            }
+        }
+
+        ScoreList r = processQuery(query, model, MAX_RESULTS, output);
+        if (r != null) {
+            output.results = formatResults(qid, r);
+        }
+        return output;
+    }
+
+    /**
+     * Print the lines of one query and write its output.
+     *
+     * @param output The query output.
+     * @param outputFilePath Output file's path
+     * @param parameters Parameters specified in the parameters file
+     * @throws IOException Error writing the output.
+     */
+    static void writeQueryOutput(QueryOutput output, String outputFilePath,
+                                 Map<String, String> parameters)
+            throws IOException {
+        System.out.print(output.log);
+        if (output.expansion != null) {
+            appendToFile(parameters.get("fbExpansionQueryFile"), output.expansion);
+        }
+        if (output.results != null) {
+            // Debug info
+            System.out.println(output.qid + ":  ");
+            appendToFile(outputFilePath, output.results);
+        }
+    }
+
     static ArrayList<String> getExternalIds(ScoreList result, int num)
             throws IOException {
         ArrayList<String> externalIds = new ArrayList<>();
@@ -849,46 +1396,32 @@ public class QryEval {
         int endIndex = Math.min(num, result.size());
         result.sort();
         for (int i = 0; i < endIndex; i++) {
-            externalIds.add(Idx.getExternalDocid(result.getDocid(i)));
+            externalIds.add(result.getExternalId(i));
         }
         return externalIds;
     }
 
     /**
-     * Print the query results.
+     * Format an expanded query for the expansion query file.
      *
      * @param queryName query id.
      * @param query    query to write
-     * @param outputFilePath Output file's path
-     * @throws IOException Error accessing the Lucene index.
+     * @return The formatted line.
      */
-    static void printQuery(String queryName, String query, String outputFilePath)
-            throws IOException {
-        // write to file
-        FileWriter fw = null;
-        try {
-            fw = new FileWriter(outputFilePath, true); //the true will append the new data
-            fw.write(String.format("%s: %s\n", queryName, query)); //appends the string to the file
-        } catch (IOException ioe) {
-            System.err.println("IOException: " + ioe.getMessage());
-        } finally {
-            if (fw != null)
-                fw.close();
-        }
+    static String formatQuery(String queryName, String query) {
+        return String.format("%s: %s\n", queryName, query);
     }
 
     /**
-     * Print the expanded query
+     * Format query results in trec_eval format.
      *
      * @param queryName Original query.
      * @param result    A list of document ids and scores
-     * @param outputFilePath Output file's path
+     * @return The formatted lines.
      * @throws IOException Error accessing the Lucene index.
      */
-    static void printResults(String queryName, ScoreList result, String outputFilePath)
+    static String formatResults(String queryName, ScoreList result)
             throws IOException {
-        // Debug info
-        System.out.println(queryName + ":  ");
         StringBuilder stringBuilder = new StringBuilder();
         if (result.size() < 1) {
             // no results, print a dummy
@@ -896,19 +1429,31 @@ public class QryEval {
                     queryName, "Q0", "dummy", 1, 0., "RunID"));
         } else {
             result.sort(); // sort first by score, then by doc id
-            // print best 100 results
-            int endIndex = Math.min(100, result.size());
+            // print best MAX_RESULTS results
+            int endIndex = Math.min(MAX_RESULTS, result.size());
             for (int i = 0; i < endIndex; i++) {
                 stringBuilder.append(String.format("%s\t%s\t%s\t%d\t%g\t%s\n",
-                        queryName, "Q0", Idx.getExternalDocid(result.getDocid(i)),
+                        queryName, "Q0", result.getExternalId(i),
                         i + 1, result.getDocidScore(i), "RunID"));
             }
         }
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Append text to a file.
+     *
+     * @param outputFilePath Output file's path
+     * @param text The text to append.
+     * @throws IOException Error closing the file.
+     */
+    static void appendToFile(String outputFilePath, String text)
+            throws IOException {
         // write to file
         FileWriter fw = null;
         try {
             fw = new FileWriter(outputFilePath, true); //the true will append the new data
-            fw.write(stringBuilder.toString());//appends the string to the file
+            fw.write(text);//appends the string to the file
         } catch (IOException ioe) {
             System.err.println("IOException: " + ioe.getMessage());
         } finally {
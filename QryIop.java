@@ -18,7 +18,9 @@ import java.util.*;
  *  and location information are accessed via Qry.docIterator and
  *  QryIop.locIterator.  Corpus-level information, for example, 
  *  document frequency (df) and collection term frequency (ctf), are
- *  available via specific methods (e.g., getDf and getCtf).
+ *  available via specific methods (e.g., getDf and getCtf).  The
+ *  exception is QryIopTerm, which normally streams its inverted list
+ *  from the index instead of caching it.
  *  </p><p>
  *  QryIop operators support iteration over the locations in the
  *  document that Qry.docIteratorHasMatch matches.  The semantics
@@ -35,6 +37,11 @@ public abstract class QryIop extends Qry {
    *  Iteration in QryIop and QrySop is very different.  In QryIop,
    *  docIterator and locIterator iterate over the cached inverted
    *  list, NOT recursively over the query arguments.
+   *
+   *  The locIterator only uses docIteratorGetMatchTf and
+   *  docIteratorGetMatchPositions, so a subclass that does not cache
+   *  an inverted list (e.g., a streaming QryIopTerm) only needs to
+   *  override the docIterator and the df/ctf accessors.
    */
 
     /**
@@ -54,6 +61,12 @@ public abstract class QryIop extends Qry {
      */
     protected InvList invertedList = null;
 
+    /**
+     *  An inverted list that was evaluated before the query operator
+     *  was initialized, or null.  See setEvaluatedList.
+     */
+    private InvList evaluatedList = null;
+
     /**
      *  The index of the document that the docIterator points to now.
      */
@@ -64,6 +77,18 @@ public abstract class QryIop extends Qry {
      */
     private int locIteratorIndex = QryIop.INVALID_ITERATOR_INDEX;
 
+    /**
+     *  The decoded locations of the document that the docIterator
+     *  points to.  Locations are decoded lazily, the first time that
+     *  they are needed for a document, and the buffer is reused.
+     */
+    private int[] locIteratorPositions = null;
+
+    /**
+     *  The docIterator index whose locations are in locIteratorPositions.
+     */
+    private int locIteratorPositionsIndex = QryIop.INVALID_ITERATOR_INDEX;
+
     /**
      *  Advance the query operator's internal iterator beyond the
      *  specified document.
@@ -71,9 +96,11 @@ public abstract class QryIop extends Qry {
      */
     public void docIteratorAdvancePast(int docid) {
 
-        while ((this.docIteratorIndex < this.invertedList.df) &&
-                (this.invertedList.getDocid(this.docIteratorIndex) <= docid)) {
-            this.docIteratorIndex++;
+        if (docid == Integer.MAX_VALUE) {
+            this.docIteratorIndex = this.invertedList.df;
+        } else {
+            this.docIteratorIndex =
+                    this.invertedList.findDocid(this.docIteratorIndex, docid + 1);
         }
 
         this.locIteratorIndex = 0;
@@ -86,10 +113,8 @@ public abstract class QryIop extends Qry {
      */
     public void docIteratorAdvanceTo(int docid) {
 
-        while ((this.docIteratorIndex < this.invertedList.df) &&
-                (this.invertedList.getDocid(this.docIteratorIndex) < docid)) {
-            this.docIteratorIndex++;
-        }
+        this.docIteratorIndex =
+                this.invertedList.findDocid(this.docIteratorIndex, docid);
 
         this.locIteratorIndex = 0;
     }
@@ -99,7 +124,7 @@ public abstract class QryIop extends Qry {
      *  any possible document.
      */
     public void docIteratorFinish() {
-        this.docIteratorIndex = this.invertedList.postings.size();
+        this.docIteratorIndex = this.invertedList.df;
     }
 
     /**
@@ -114,12 +139,33 @@ public abstract class QryIop extends Qry {
     }
 
     /**
-     *  Return the postings for the document that the docIterator points to
-     *  now, or throw an error if the docIterator doesn't point at a document.
-     *  @return A document posting.
+     *  Return the term frequency of the document that the docIterator
+     *  points to now, or throw an error if the docIterator doesn't point
+     *  at a document.
+     *  @return The document's term frequency.
+     */
+    public int docIteratorGetMatchTf() {
+        return this.invertedList.getTf(this.docIteratorIndex);
+    }
+
+    /**
+     *  Return the locations of the document that the docIterator points
+     *  to now, or throw an error if the docIterator doesn't point at a
+     *  document.  The returned buffer is owned by the iterator; only its
+     *  first docIteratorGetMatchTf() entries are valid, and it is
+     *  overwritten when the docIterator moves.
+     *  @return A buffer of document locations.
      */
-    public InvList.DocPosting docIteratorGetMatchPosting() {
-        return this.invertedList.postings.get(docIteratorIndex);
+    public int[] docIteratorGetMatchPositions() {
+
+        if (this.locIteratorPositionsIndex != this.docIteratorIndex) {
+            this.locIteratorPositions =
+                    this.invertedList.getPositions(this.docIteratorIndex,
+                            this.locIteratorPositions);
+            this.locIteratorPositionsIndex = this.docIteratorIndex;
+        }
+
+        return this.locIteratorPositions;
     }
 
     /**
@@ -151,6 +197,29 @@ public abstract class QryIop extends Qry {
         return this.invertedList.df;
     }
 
+    /**
+     *  Get the inverted list that was cached when the query operator
+     *  was initialized.
+     *  @return The inverted list, or null if the operator streams its
+     *          postings instead of caching them.
+     */
+    public InvList getInvertedList() {
+        return this.invertedList;
+    }
+
+    /**
+     *  Use an inverted list that was already evaluated, e.g., by another
+     *  copy of the query, instead of initializing the query arguments
+     *  and evaluating the operator.  Inverted lists are only read, so
+     *  copies of a query that are evaluated in parallel can share one;
+     *  each copy keeps its own iterators.  Must be called before
+     *  initialize.
+     *  @param invertedList The inverted list of this query operator.
+     */
+    public void setEvaluatedList(InvList invertedList) {
+        this.evaluatedList = invertedList;
+    }
+
     /**
      *  Get the field associated with this query operator.
      *  @return The field associated with this query operator.
@@ -174,20 +243,26 @@ public abstract class QryIop extends Qry {
      */
     public void initialize(RetrievalModel r) throws IOException {
 
-        //  Initialize the query arguments (if any).
+        if (this.evaluatedList != null) {
+            this.invertedList = this.evaluatedList;
+        } else {
 
-        for (Qry q_i : this.args) {
-            ((QryIop) q_i).initialize(r);
-        }
+            //  Initialize the query arguments (if any).
+
+            for (Qry q_i : this.args) {
+                ((QryIop) q_i).initialize(r);
+            }
 
-        //  Evaluate the operator.
+            //  Evaluate the operator.
 
-        this.evaluate();
+            this.evaluate();
+        }
 
         //  Initialize the internal iterators.
 
         this.docIteratorIndex = 0;
         this.locIteratorIndex = 0;
+        this.locIteratorPositionsIndex = QryIop.INVALID_ITERATOR_INDEX;
     }
 
     /**
@@ -204,11 +279,11 @@ public abstract class QryIop extends Qry {
      *  @param loc The location to advance beyond.
      */
     public void locIteratorAdvancePast(int loc) {
-        int tf = this.invertedList.postings.get(this.docIteratorIndex).tf;
-        Vector<Integer> positions = this.invertedList.postings.get(this.docIteratorIndex).positions;
+        int tf = this.docIteratorGetMatchTf();
+        int[] positions = this.docIteratorGetMatchPositions();
 
         while ((this.locIteratorIndex < tf) &&
-                (positions.get(this.locIteratorIndex) <= loc)) {
+                (positions[this.locIteratorIndex] <= loc)) {
             locIteratorIndex++;
         }
     }
@@ -218,8 +293,7 @@ public abstract class QryIop extends Qry {
      *  any possible location.
      */
     public void locIteratorFinish() {
-        this.locIteratorIndex =
-                this.invertedList.postings.get(this.docIteratorIndex).tf;
+        this.locIteratorIndex = this.docIteratorGetMatchTf();
     }
 
     /**
@@ -230,8 +304,7 @@ public abstract class QryIop extends Qry {
      *  @return The internal id of the current document.
      */
     public int locIteratorGetMatch() {
-        Vector<Integer> locations = this.docIteratorGetMatchPosting().positions;
-        return locations.get(this.locIteratorIndex);
+        return this.docIteratorGetMatchPositions()[this.locIteratorIndex];
     }
 
     /**
@@ -240,8 +313,16 @@ public abstract class QryIop extends Qry {
      *  @return True if the iterator currently points to a location.
      */
     public boolean locIteratorHasMatch() {
-        return (this.locIteratorIndex <
-                this.invertedList.getTf(this.docIteratorIndex));
+        return (this.locIteratorIndex < this.docIteratorGetMatchTf());
+    }
+
+    /**
+     *  Reset the locIterator to the first location of the document
+     *  that the docIterator points to.  Subclasses that provide their
+     *  own docIterator must call this whenever the docIterator moves.
+     */
+    protected void locIteratorReset() {
+        this.locIteratorIndex = 0;
     }
 
 }
@@ -6,15 +6,45 @@ import java.io.*;
 import java.util.*;
 
 /**
- *  The SYN operator for all retrieval models.
+ *  The NEAR/n operator for all retrieval models.  It matches the
+ *  arguments in order, each at most n locations after the previous
+ *  one.
+ *  <p>
+ *  For each document that all arguments match, the arguments'
+ *  locations are read as int arrays, and matched by a merge scan with
+ *  one cursor per argument.  The location of the last argument of
+ *  each match is written to a reusable buffer.
+ *  </p>
  */
 public class QryIopNear extends QryIop {
 
     private int distance;
 
+    /**
+     *  The locations and tfs of the arguments in the current document,
+     *  and a cursor into each argument's locations.
+     */
+    private int[][] locations;
+    private int[] tfs;
+    private int[] cursors;
+
+    /**
+     *  Result locations of the current document.  The buffer is reused
+     *  for every document.
+     */
+    private int[] positions = new int[16];
+
     public QryIopNear(int n) {
         this.distance = n;
     }
+
+    /**
+     *  Get the maximum distance between adjacent arguments.
+     */
+    public int getDistance() {
+        return this.distance;
+    }
+
     /**
      *  Evaluate the query operator; the result is an internal inverted
      *  list that may be accessed via the internal iterators.
@@ -31,128 +61,115 @@ public class QryIopNear extends QryIop {
             return;
         }
 
-        //  Each pass of the loop adds 1 document to result inverted list
-        //  until all of the argument inverted lists are depleted.
+        int k = this.args.size();
+
+        this.locations = new int[k][];
+        this.tfs = new int[k];
+        this.cursors = new int[k];
+
+        //  Each pass of the loop adds at most 1 document to result
+        //  inverted list until one of the argument inverted lists is
+        //  depleted.
 
         while (true) {
 
-            //  Find the minimum next document id.  If there is none, we're done.
-
-            int maxDocid = Integer.MIN_VALUE;
-
-            for (Qry q_i : this.args) {
-                if (q_i.docIteratorHasMatch(null)) {
-                    int q_iDocid = q_i.docIteratorGetMatch();
-                    if(q_iDocid == Qry.INVALID_DOCID) {
-                        maxDocid = Qry.INVALID_DOCID;
-                        break;
-                    }
-                    if (maxDocid < q_iDocid) {
-                        maxDocid = q_iDocid;
-                    }
-                } else {
-                    maxDocid = Qry.INVALID_DOCID;
-                    break;
-                }
-            }
+            //  Find the next document that all arguments match.  The
+            //  driver argument (see Qry.setMatchAllOrder) leads, and the
+            //  others are advanced to it.  If there is none, we're done.
+
+            int docid = this.docIteratorNextMatchAll(null);
 
-            if (maxDocid == Qry.INVALID_DOCID)
+            if (docid == Qry.INVALID_DOCID)
                 break;                // All docids have been processed.  Done.
 
-            // Advance all doc iterators to max doc id
-            for (Qry q_i : this.args) {
-                q_i.docIteratorAdvanceTo(maxDocid);
+            for (int i = 0; i < k; i++) {
+                QryIop q_i = this.getArg(i);
+
+                this.locations[i] = q_i.docIteratorGetMatchPositions();
+                this.tfs[i] = q_i.docIteratorGetMatchTf();
             }
 
-            boolean allHasMatch = true;
-            //check if all has match
-            for (int i = 0; i < this.args.size(); i++) {
-                QryIop q_i = this.getArg(i);
-                if (!q_i.docIteratorHasMatch(null) ||
-                        !(q_i.docIteratorGetMatch() == maxDocid)) {
-                    allHasMatch = false;
+            int tf = this.matchLocations();
+
+            if (tf > 0)
+                this.invertedList.appendPosting(docid, this.positions, tf);
+
+            for (int i = 0; i < k; i++)
+                this.getArg(i).docIteratorAdvancePast(docid);
+        }
+    }
+
+    /**
+     *  Find the matches in the current document.  Each argument's cursor
+     *  is moved past the location of the argument before it.  If each
+     *  argument is within distance of the one before it, the locations
+     *  match, and every cursor moves on.  Otherwise the first argument's
+     *  cursor moves until it is within distance of the second's.
+     *  @return The number of matches, whose locations are in positions.
+     */
+    private int matchLocations() {
+
+        int[][] locs = this.locations;
+        int[] tfs = this.tfs;
+        int[] c = this.cursors;
+        int k = locs.length;
+        int tf = 0;
+
+        Arrays.fill(c, 0);
+
+        scan:
+        while (true) {
+
+            //  Make the locations ascend.
+
+            for (int i = 1; i < k; i++) {
+                if (c[i - 1] >= tfs[i - 1])
+                    break scan;
+
+                int prev = locs[i - 1][c[i - 1]];
+                int[] locs_i = locs[i];
+                int j = c[i];
+
+                while ((j < tfs[i]) && (locs_i[j] <= prev))
+                    j++;
+
+                c[i] = j;
+            }
+
+            if (c[k - 1] >= tfs[k - 1])
+                break;
+
+            //  Check whether they are within distance of each other.
+
+            boolean valid = true;
+
+            for (int i = 1; i < k; i++) {
+                if (locs[i][c[i]] - locs[i - 1][c[i - 1]] > this.distance) {
+                    valid = false;
                     break;
                 }
             }
 
+            if (valid) {
+                if (tf == this.positions.length)
+                    this.positions = Arrays.copyOf(this.positions, 2 * tf);
 
+                this.positions[tf++] = locs[k - 1][c[k - 1]];
 
-            //  Create a new posting that is the union of the posting lists
-            //  that match the minDocid.  Save it.
-            //  Note:  This implementation assumes that a location will not appear
-            //  in two or more arguments.  #SYN (apple apple) would break it.
-
-            // calculate only when all has match
-            if(allHasMatch) {
-
-                List<Integer> positions = new ArrayList<Integer>();
-                boolean canContinue = true;
-                while(canContinue) {
-                    // make sure positions are in ascending order
-                    for (int i = 1; i < this.args.size(); i++) {
-                        if(this.getArg(i - 1).locIteratorHasMatch()) {
-                            int prevMatch = this.getArg(i - 1).locIteratorGetMatch();
-                            this.getArg(i).locIteratorAdvancePast(prevMatch);
-                        }
-                        else {
-                            canContinue = false;
-                            break;
-                        }
-                    }
-                    if(!this.getArg(this.args.size() - 1).locIteratorHasMatch())
-                        canContinue = false;
-                    // if run out of positions, break
-                    if(!canContinue)
-                        break;
-                    // check if positions are within n distance
-                    boolean valid = true;
-                    for (int i = 1; i < this.args.size(); i++) {
-                        if(this.getArg(i - 1).locIteratorHasMatch() &&
-                                this.getArg(i).locIteratorHasMatch()) {
-                            if(this.getArg(i).locIteratorGetMatch() -
-                                    this.getArg(i - 1).locIteratorGetMatch() > this.distance) {
-                                valid = false;
-                                break;
-                            }
-                        }
-                        else {
-                            canContinue = false;
-                            break;
-                        }
-                    }
-                    // if run out of positions, break
-                    if(!canContinue)
-                        break;
-                    if (valid) {
-                        //add valid solution
-                        positions.add(this.getArg(this.args.size() - 1).locIteratorGetMatch());
-                        // advance all pointers
-                        for (int i = 0; i < this.args.size(); i++) {
-                            this.getArg(i).locIteratorAdvance();
-                        }
-                    }
-                    else {
-                        // invalid, increase first to until n step behind the second, at least once
-                        int secondPosition = Integer.MAX_VALUE;
-                        if(this.getArg(1).locIteratorHasMatch())
-                            secondPosition = this.getArg(1).locIteratorGetMatch();
-                        do {
-                            this.getArg(0).locIteratorAdvance();
-                            if (!this.getArg(0).locIteratorHasMatch()) {
-                                canContinue = false;
-                                break;
-                            }
-                        } while (secondPosition - this.getArg(0).locIteratorGetMatch() > distance);
-                    }
-                }
-                if(positions.size() > 0)
-                    this.invertedList.appendPosting(maxDocid, positions);
-                // process one doc, get next document
-                for (int i = 0; i < this.args.size(); i++) {
-                    this.getArg(i).docIteratorAdvancePast(maxDocid);
-                }
+                for (int i = 0; i < k; i++)
+                    c[i]++;
+            } else {
+                int second = locs[1][c[1]];
+
+                do {
+                    c[0]++;
+
+                    if (c[0] >= tfs[0])
+                        break scan;
+                } while (second - locs[0][c[0]] > this.distance);
             }
         }
-    }
 
-}
\ No newline at end of file
+        return tf;
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  #NEAR/1 of two terms, whose inverted list is read from the phrase
+ *  index (see PhraseIndex) instead of being computed from the terms'
+ *  inverted lists.  QryOptimizer substitutes it for #NEAR/1 operators
+ *  whose term pair is in the phrase index.  It has no arguments, so
+ *  it is evaluated like a term.
+ */
+public class QryIopPhrase extends QryIop {
+
+    private String term1;
+    private String term2;
+
+    /**
+     *  @param term1 The first term of the phrase.
+     *  @param term2 The second term of the phrase.
+     *  @param fieldString The field that the phrase occurs in.
+     */
+    public QryIopPhrase(String term1, String term2, String fieldString) {
+        this.term1 = term1;
+        this.term2 = term2;
+        this.field = fieldString;
+        this.setDisplayName("#PHRASE");
+    }
+
+    /**
+     *  Get the df of the phrase from the phrase index, without reading
+     *  its inverted list.
+     *  @return The df, or 0 if the phrase is not in the phrase index.
+     */
+    public int getPhraseDf() {
+        PhraseIndex phraseIndex = Idx.getPhraseIndex();
+        return (phraseIndex == null) ? 0 : phraseIndex.getDf(this.field, this.term1, this.term2);
+    }
+
+    /**
+     *  Evaluate the query operator; the result is an internal inverted
+     *  list that may be accessed via the internal iterators.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    protected void evaluate() throws IOException {
+
+        PhraseIndex phraseIndex = Idx.getPhraseIndex();
+
+        if (phraseIndex != null)
+            this.invertedList = phraseIndex.getInvList(this.field, this.term1, this.term2);
+
+        if (this.invertedList == null)
+            this.invertedList = new InvList(this.field);
+    }
+
+    /**
+     *  Get a string version of this query operator.
+     *  @return The string version of this query operator.
+     */
+    @Override
+    public String toString() {
+        return (this.getDisplayName() + "( " + this.term1 + "." + this.field + " " +
+                this.term2 + "." + this.field + " )");
+    }
+}
@@ -26,48 +26,93 @@ public class QryIopSyn extends QryIop {
             return;
         }
 
+        //  Arguments that have more matches are kept in a heap keyed by
+        //  their next docids.  The locations of the arguments that match
+        //  a document are already sorted, so they are merged k-way with
+        //  a second heap keyed by location, into a buffer that is reused
+        //  for every document.
+
+        int n = this.args.size();
+        QryArgHeap docHeap = new QryArgHeap(n);
+        QryArgHeap locHeap = new QryArgHeap(n);
+        int[] matched = new int[n];
+        int[][] locations = new int[n][];
+        int[] tfs = new int[n];
+        int[] next = new int[n];
+        int[] positions = new int[16];
+
+        for (int i = 0; i < n; i++) {
+            Qry q_i = this.args.get(i);
+
+            if (q_i.docIteratorHasMatch(null))
+                docHeap.add(i, q_i.docIteratorGetMatch());
+        }
+
         //  Each pass of the loop adds 1 document to result inverted list
         //  until all of the argument inverted lists are depleted.
 
-        while (true) {
+        while (docHeap.size() > 0) {
 
-            //  Find the minimum next document id.  If there is none, we're done.
+            //  Create a new posting that is the union of the posting lists
+            //  that match the minimum docid.  Save it.
+            //  Note:  This implementation assumes that a location will not appear
+            //  in two or more arguments.  #SYN (apple apple) would break it.
 
-            int minDocid = Qry.INVALID_DOCID;
+            int minDocid = docHeap.topKey();
+            int m = 0;
+            int tf = 0;
 
-            for (Qry q_i : this.args) {
-                if (q_i.docIteratorHasMatch(null)) {
-                    int q_iDocid = q_i.docIteratorGetMatch();
+            while ((docHeap.size() > 0) && (docHeap.topKey() == minDocid)) {
+                QryIop q_i = (QryIop) this.args.get(docHeap.topArg());
 
-                    if ((minDocid > q_iDocid) ||
-                            (minDocid == Qry.INVALID_DOCID)) {
-                        minDocid = q_iDocid;
-                    }
-                }
+                matched[m] = docHeap.topArg();
+                locations[m] = q_i.docIteratorGetMatchPositions();
+                tfs[m] = q_i.docIteratorGetMatchTf();
+                tf += tfs[m];
+                m++;
+                docHeap.removeTop();
             }
 
-            if (minDocid == Qry.INVALID_DOCID)
-                break;                // All docids have been processed.  Done.
+            if (tf > positions.length)
+                positions = Arrays.copyOf(positions, Math.max(tf, 2 * positions.length));
 
-            //  Create a new posting that is the union of the posting lists
-            //  that match the minDocid.  Save it.
-            //  Note:  This implementation assumes that a location will not appear
-            //  in two or more arguments.  #SYN (apple apple) would break it.
+            if (m == 1) {
+                System.arraycopy(locations[0], 0, positions, 0, tfs[0]);
+            } else {
+                locHeap.clear();
 
-            List<Integer> positions = new ArrayList<Integer>();
+                for (int j = 0; j < m; j++) {
+                    next[j] = 0;
 
-            for (Qry q_i : this.args) {
-                if (q_i.docIteratorHasMatch(null) &&
-                        (q_i.docIteratorGetMatch() == minDocid)) {
-                    Vector<Integer> locations_i =
-                            ((QryIop) q_i).docIteratorGetMatchPosting().positions;
-                    positions.addAll(locations_i);
-                    q_i.docIteratorAdvancePast(minDocid);
+                    if (tfs[j] > 0)
+                        locHeap.add(j, locations[j][0]);
+                }
+
+                for (int p = 0; p < tf; p++) {
+                    int j = locHeap.topArg();
+
+                    positions[p] = locHeap.topKey();
+
+                    if (++next[j] < tfs[j])
+                        locHeap.replaceTopKey(locations[j][next[j]]);
+                    else
+                        locHeap.removeTop();
                 }
             }
 
-            Collections.sort(positions);
-            this.invertedList.appendPosting(minDocid, positions);
+            this.invertedList.appendPosting(minDocid, positions, tf);
+
+            //  Locations may be stored in buffers that are reused, so the
+            //  arguments are advanced after their locations are merged.
+
+            for (int j = 0; j < m; j++) {
+                Qry q_i = this.args.get(matched[j]);
+
+                q_i.docIteratorAdvancePast(minDocid);
+
+                if (q_i.docIteratorHasMatch(null))
+                    docHeap.add(matched[j], q_i.docIteratorGetMatch());
+            }
         }
     }
 
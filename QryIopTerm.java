@@ -4,18 +4,91 @@
 import java.io.*;
 import java.util.*;
 
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.*;
+
 /**
  *  The TERM operator for all retrieval models.  The TERM operator stores
  *  information about a query term, for example "apple" in the query
  *  "#AND (apple pie).  Although it may seem odd to use a query
  *  operator to store a term, doing so makes it easy to build
  *  structured queries with nested query operators.
- *
+ *  <p>
+ *  By default the TERM operator does not copy its inverted list.  Its
+ *  docIterator reads the Lucene postings enum directly, using
+ *  DocsEnum.advance to skip, and locations are decoded only for
+ *  documents whose locations are requested.  The df and ctf come from
+ *  the Lucene terms dictionary.  Those statistics include deleted
+ *  documents, so if the index has deletions, or if materialization is
+ *  requested with setMaterialize, the inverted list is copied into an
+ *  InvList as before.  When the InvListCache is enabled, inverted lists
+ *  are always materialized, via the cache.  Inverted lists are also
+ *  materialized when they are read from a native index, which decodes
+ *  them straight from memory-mapped files, and when the query optimizer
+ *  finds the term more than once in a query, so that the operators can
+ *  share one copy.
+ *  </p><p>
+ *  A streaming term opens one postings enum per index segment (leaf),
+ *  rather than a MultiFields enum that merges them, and walks the
+ *  leaves in docid order.  Skips within a leaf go straight to that
+ *  leaf's enum, and leaves between the current document and a skip
+ *  target are never opened for reading.
+ *  </p>
  */
 public class QryIopTerm extends QryIop {
 
   private String term;
 
+  /**
+   *  If true, evaluate copies the inverted list into an InvList.
+   */
+  private boolean materialize = false;
+
+  /**
+   *  True if the docIterator reads the Lucene postings directly,
+   *  false if it reads a materialized InvList.
+   */
+  private boolean streaming = false;
+
+  /**
+   *  The Lucene postings of a streaming term in each leaf of the index.
+   *  An entry is null if the term does not occur in the leaf.
+   */
+  private DocsAndPositionsEnum[] leafPostings = null;
+
+  /**
+   *  The leaf that the streaming docIterator is in, and its postings.
+   */
+  private int postingsLeaf = 0;
+  private DocsAndPositionsEnum postings = null;
+
+  /**
+   *  The document that the streaming docIterator points to now, or
+   *  NO_MORE_DOCS if it is exhausted.
+   */
+  private int postingsDocid = DocIdSetIterator.NO_MORE_DOCS;
+
+  /**
+   *  Corpus statistics of a streaming term.
+   */
+  private int postingsDf = 0;
+  private int postingsCtf = 0;
+
+  /**
+   *  Decoded locations of the current streaming document, and the
+   *  document that they belong to.
+   */
+  private int[] postingsPositions = new int[16];
+  private int postingsPositionsDocid = Qry.INVALID_DOCID;
+
+  /**
+   *  Terms that occur more than once in a query share one inverted
+   *  list, which the first of them to be initialized stores here.
+   *  Set by QryOptimizer; null if the term is not shared.
+   */
+  private InvList[] sharedList = null;
+
   /**
    *  The term is assumed to match the body field.
    *  @param termString A term string.
@@ -35,17 +108,314 @@ public class QryIopTerm extends QryIop {
     this.field = fieldString;
   }
 
+  /**
+   *  Get the term string.
+   *  @return The processed term string.
+   */
+  public String getTerm() {
+    return this.term;
+  }
+
+  /**
+   *  Request that the inverted list is copied into an InvList when
+   *  the operator is initialized, instead of being streamed from the
+   *  index.  Must be called before initialize.
+   *  @param materialize True to copy the inverted list.
+   */
+  public void setMaterialize(boolean materialize) {
+    this.materialize = materialize;
+  }
+
+  /**
+   *  Share one materialized inverted list with other operators for the
+   *  same term and field.  Each operator keeps its own iterators.  Must
+   *  be called before initialize.
+   *  @param sharedList A one-element array that is shared by the
+   *         operators, initially empty.
+   */
+  public void setSharedList (InvList[] sharedList) {
+    this.sharedList = sharedList;
+  }
+
+  /**
+   *  Indicates whether initialize will stream the postings from the
+   *  index instead of materializing an inverted list.
+   *  @return True if the term will stream its postings.
+   */
+  public boolean isStreaming() {
+    return (this.sharedList == null) && ! this.materialize &&
+           ! InvListCache.isEnabled() && (Idx.getNativeIndex() == null) &&
+           ! Idx.INDEXREADER.hasDeletions();
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
    *  @throws IOException Error accessing the Lucene index.
    */
   protected void evaluate () throws IOException {
-    this.invertedList = new InvList(this.term, this.field);
+
+    if (this.sharedList != null) {
+      if (this.sharedList[0] == null)
+        this.sharedList[0] = InvListCache.getInvList(this.term, this.field);
+
+      this.invertedList = this.sharedList[0];
+      this.streaming = false;
+      this.postings = null;
+      return;
+    }
+
+    if (! this.isStreaming()) {
+      this.invertedList = InvListCache.getInvList(this.term, this.field);
+      this.streaming = false;
+      this.postings = null;
+      return;
+    }
+
+    //  Open a cursor on the Lucene inverted list.  Offsets and
+    //  payloads are not used, so don't ask Lucene to decode them.
+
+    BytesRef termBytes = new BytesRef(this.term);
+    int termId = TermStats.getTermId(this.field, this.term);
+
+    this.invertedList = null;
+    this.streaming = true;
+    this.postingsDf = TermStats.getDf(termId);
+    this.postingsCtf = 0;
+    this.postingsPositionsDocid = Qry.INVALID_DOCID;
+    this.postingsDocid = DocIdSetIterator.NO_MORE_DOCS;
+    this.postings = null;
+
+    if (this.postingsDf < 1)
+      return;
+
+    this.postingsCtf = (int) TermStats.getCtf(termId);
+
+    List<AtomicReaderContext> leaves = Idx.INDEXREADER.leaves();
+
+    this.leafPostings = new DocsAndPositionsEnum[leaves.size()];
+
+    for (int i = 0; i < leaves.size(); i++) {
+      Terms terms = leaves.get(i).reader().terms(this.field);
+
+      if (terms == null)
+        continue;
+
+      TermsEnum termsEnum = terms.iterator(null);
+
+      if (termsEnum.seekExact(termBytes, true))
+        this.leafPostings[i] = termsEnum.docsAndPositions(null, null, 0);
+    }
+
+    this.postingsLeaf = 0;
+    this.postingsDocid = Qry.INVALID_DOCID;
+    this.streamAdvance(0);
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  specified document.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvancePast(int docid) {
+
+    if (! this.streaming) {
+      super.docIteratorAdvancePast(docid);
+      return;
+    }
+
+    //  No document follows Integer.MAX_VALUE, and docid + 1 would
+    //  overflow, so the iterator is exhausted.
+
+    if (docid == Integer.MAX_VALUE) {
+      this.postingsDocid = DocIdSetIterator.NO_MORE_DOCS;
+      this.locIteratorReset();
+      return;
+    }
+
+    this.streamAdvance(docid + 1);
+  }
+
+  /**
+   *  Advance the query operator's internal iterator to the specified
+   *  document if it exists, or beyond if it doesn't.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvanceTo(int docid) {
+
+    if (! this.streaming) {
+      super.docIteratorAdvanceTo(docid);
+      return;
+    }
+
+    this.streamAdvance(docid);
+  }
+
+  /**
+   *  Advance the streaming docIterator to the first document that is
+   *  greater than or equal to target.
+   *  @param target An internal document id.
+   */
+  private void streamAdvance(int target) {
+
+    if (this.postingsDocid < target) {
+      try {
+        this.streamSeek(target);
+      } catch (IOException ex) {
+        throw new IllegalStateException("Error reading the postings of " + this, ex);
+      }
+    }
+
+    this.locIteratorReset();
+  }
+
+  /**
+   *  Move the streaming docIterator to the first posting that is
+   *  greater than or equal to target, starting in the leaf that
+   *  contains target.  Leaves are only visited in increasing order,
+   *  so each leaf's enum only moves forward.
+   *  @param target An internal document id.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void streamSeek(int target) throws IOException {
+
+    int[] docBases = Idx.getLeafDocBases();
+    int leaf = Math.max(this.postingsLeaf, Idx.getLeaf(target));
+
+    for (; leaf < this.leafPostings.length; leaf++) {
+      DocsAndPositionsEnum p = this.leafPostings[leaf];
+
+      if (p == null)
+        continue;
+
+      int docid = p.advance(Math.max(target - docBases[leaf], 0));
+
+      if (docid != DocIdSetIterator.NO_MORE_DOCS) {
+        this.postingsLeaf = leaf;
+        this.postings = p;
+        this.postingsDocid = docBases[leaf] + docid;
+        return;
+      }
+    }
+
+    this.postingsLeaf = this.leafPostings.length;
+    this.postings = null;
+    this.postingsDocid = DocIdSetIterator.NO_MORE_DOCS;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  any possible document.
+   */
+  public void docIteratorFinish() {
+
+    if (! this.streaming) {
+      super.docIteratorFinish();
+      return;
+    }
+
+    this.postingsDocid = DocIdSetIterator.NO_MORE_DOCS;
+  }
+
+  /**
+   *  Return the id of the document that the query operator's internal
+   *  iterator points to now.
+   *  @return The internal id of the current document.
+   */
+  public int docIteratorGetMatch() {
+
+    if (! this.streaming)
+      return super.docIteratorGetMatch();
+
+    return this.postingsDocid;
+  }
+
+  /**
+   *  Return the term frequency of the document that the docIterator
+   *  points to now.
+   *  @return The document's term frequency.
+   */
+  public int docIteratorGetMatchTf() {
+
+    if (! this.streaming)
+      return super.docIteratorGetMatchTf();
+
+    try {
+      return this.postings.freq();
+    } catch (IOException ex) {
+      throw new IllegalStateException("Error reading the postings of " + this, ex);
+    }
+  }
+
+  /**
+   *  Return the locations of the document that the docIterator points
+   *  to now.  Lucene can only read them once per document, so they are
+   *  decoded into a buffer the first time they are requested.
+   *  @return A buffer of document locations.
+   */
+  public int[] docIteratorGetMatchPositions() {
+
+    if (! this.streaming)
+      return super.docIteratorGetMatchPositions();
+
+    if (this.postingsPositionsDocid != this.postingsDocid) {
+      try {
+        int tf = this.postings.freq();
+
+        if (this.postingsPositions.length < tf)
+          this.postingsPositions = new int[Math.max(tf, 2 * this.postingsPositions.length)];
+
+        for (int j = 0; j < tf; j++)
+          this.postingsPositions[j] = this.postings.nextPosition();
+      } catch (IOException ex) {
+        throw new IllegalStateException("Error reading the postings of " + this, ex);
+      }
+
+      this.postingsPositionsDocid = this.postingsDocid;
+    }
+
+    return this.postingsPositions;
+  }
+
+  /**
+   *  Indicates whether the query has a matching document.
+   *  @param r A retrieval model (that is ignored - it can be null)
+   *  @return True if the query matches a document, otherwise false.
+   */
+  public boolean docIteratorHasMatch(RetrievalModel r) {
+
+    if (! this.streaming)
+      return super.docIteratorHasMatch(r);
+
+    return (this.postingsDocid != DocIdSetIterator.NO_MORE_DOCS);
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) of the term.
+   *  @return The collection term frequency (ctf).
+   */
+  public int getCtf() {
+
+    if (! this.streaming)
+      return super.getCtf();
+
+    return this.postingsCtf;
+  }
+
+  /**
+   *  Get the document frequency (df) of the term.
+   *  @return The document frequency (df).
+   */
+  public int getDf() {
+
+    if (! this.streaming)
+      return super.getDf();
+
+    return this.postingsDf;
   }
 
   /**
-   *  Get a string version of this query operator.  
+   *  Get a string version of this query operator.
    *  @return The string version of this query operator.
    */
   public String toString(){
@@ -6,15 +6,37 @@ import java.io.*;
 import java.util.*;
 
 /**
- *  The SYN operator for all retrieval models.
+ *  The WINDOW/n operator for all retrieval models.  It matches the
+ *  arguments in any order, within a window of fewer than n locations.
+ *  <p>
+ *  For each document that all arguments match, the arguments'
+ *  locations are read as int arrays, and matched by a merge scan with
+ *  one cursor per argument.  The last location of each window is
+ *  written to a reusable buffer.
+ *  </p>
  */
 public class QryIopWindow extends QryIop {
 
     private int distance;
 
+    /**
+     *  The locations and tfs of the arguments in the current document,
+     *  and a cursor into each argument's locations.
+     */
+    private int[][] locations;
+    private int[] tfs;
+    private int[] cursors;
+
+    /**
+     *  Result locations of the current document.  The buffer is reused
+     *  for every document.
+     */
+    private int[] positions = new int[16];
+
     public QryIopWindow(int n) {
         this.distance = n;
     }
+
     /**
      *  Evaluate the query operator; the result is an internal inverted
      *  list that may be accessed via the internal iterators.
@@ -31,109 +53,95 @@ public class QryIopWindow extends QryIop {
             return;
         }
 
-        //  Each pass of the loop adds 1 document to result inverted list
-        //  until all of the argument inverted lists are depleted.
+        int k = this.args.size();
+
+        this.locations = new int[k][];
+        this.tfs = new int[k];
+        this.cursors = new int[k];
+
+        //  Each pass of the loop adds at most 1 document to result
+        //  inverted list until one of the argument inverted lists is
+        //  depleted.
 
         while (true) {
 
-            //  Find the minimum next document id.  If there is none, we're done.
-
-            int maxDocid = Integer.MIN_VALUE;
-
-            for (Qry q_i : this.args) {
-                if (q_i.docIteratorHasMatch(null)) {
-                    int q_iDocid = q_i.docIteratorGetMatch();
-                    if(q_iDocid == Qry.INVALID_DOCID) {
-                        maxDocid = Qry.INVALID_DOCID;
-                        break;
-                    }
-                    if (maxDocid < q_iDocid) {
-                        maxDocid = q_iDocid;
-                    }
-                } else {
-                    maxDocid = Qry.INVALID_DOCID;
-                    break;
-                }
-            }
+            //  Find the next document that all arguments match.  The
+            //  driver argument (see Qry.setMatchAllOrder) leads, and the
+            //  others are advanced to it.  If there is none, we're done.
 
-            if (maxDocid == Qry.INVALID_DOCID)
+            int docid = this.docIteratorNextMatchAll(null);
+
+            if (docid == Qry.INVALID_DOCID)
                 break;                // All docids have been processed.  Done.
 
-            // Advance all doc iterators to max doc id
-            for (Qry q_i : this.args) {
-                q_i.docIteratorAdvanceTo(maxDocid);
+            for (int i = 0; i < k; i++) {
+                QryIop q_i = this.getArg(i);
+
+                this.locations[i] = q_i.docIteratorGetMatchPositions();
+                this.tfs[i] = q_i.docIteratorGetMatchTf();
             }
 
-            boolean allHasMatch = true;
-            //check if all has match
-            for (int i = 0; i < this.args.size(); i++) {
-                QryIop q_i = this.getArg(i);
-                if (!q_i.docIteratorHasMatch(null) ||
-                        !(q_i.docIteratorGetMatch() == maxDocid)) {
-                    allHasMatch = false;
-                    break;
+            int tf = this.matchLocations();
+
+            if (tf > 0)
+                this.invertedList.appendPosting(docid, this.positions, tf);
+
+            for (int i = 0; i < k; i++)
+                this.getArg(i).docIteratorAdvancePast(docid);
+        }
+    }
+
+    /**
+     *  Find the matches in the current document.  If the cursors' first
+     *  and last locations are within a window, they match, and every
+     *  cursor moves on.  Otherwise the cursor at the first location
+     *  moves on.
+     *  @return The number of matches, whose locations are in positions.
+     */
+    private int matchLocations() {
+
+        int[][] locs = this.locations;
+        int[] tfs = this.tfs;
+        int[] c = this.cursors;
+        int k = locs.length;
+        int tf = 0;
+
+        Arrays.fill(c, 0);
+
+        scan:
+        while (true) {
+            int minIndex = 0;
+            int min = Integer.MAX_VALUE;
+            int max = Integer.MIN_VALUE;
+
+            for (int i = 0; i < k; i++) {
+                if (c[i] >= tfs[i])
+                    break scan;
+
+                int loc = locs[i][c[i]];
+
+                if (loc < min) {
+                    minIndex = i;
+                    min = loc;
                 }
+
+                if (loc > max)
+                    max = loc;
             }
 
+            if (max - min < this.distance) {
+                if (tf == this.positions.length)
+                    this.positions = Arrays.copyOf(this.positions, 2 * tf);
 
+                this.positions[tf++] = max;
 
-            //  Create a new posting that is the union of the posting lists
-            //  that match the minDocid.  Save it.
-            //  Note:  This implementation assumes that a location will not appear
-            //  in two or more arguments.  #SYN (apple apple) would break it.
-
-            // calculate only when all has match
-            if(allHasMatch) {
-
-                List<Integer> positions = new ArrayList<Integer>();
-                boolean canContinue = true;
-                while(canContinue) {
-                    int minIndex = 0;
-                    int min = Integer.MAX_VALUE;
-                    int max = Integer.MIN_VALUE;
-                    // get the max and min loc of the args
-                    for (int i = 0; i < this.args.size(); i++) {
-                        if(this.getArg(i).locIteratorHasMatch()) {
-                            int loc = this.getArg(i).locIteratorGetMatch();
-                            if(loc < min) {
-                                minIndex = i;
-                                min = loc;
-                            }
-                            if (loc > max) {
-                                max = loc;
-                            }
-                        }
-                        else {
-                            canContinue = false;
-                            break;
-                        }
-                    }
-                    // if run out of positions, break
-                    if(!canContinue)
-                        break;
-                    // check if positions are within n distance
-                    boolean valid = (max - min) < this.distance;
-                    if (valid) {
-                        //add valid solution
-                        positions.add(max);
-                        // advance all pointers
-                        for (int i = 0; i < this.args.size(); i++) {
-                            this.getArg(i).locIteratorAdvance();
-                        }
-                    }
-                    else {
-                        // invalid, increase minIndex by one step
-                        this.getArg(minIndex).locIteratorAdvance();
-                    }
-                }
-                if(positions.size() > 0)
-                    this.invertedList.appendPosting(maxDocid, positions);
-                // process one doc, get next document
-                for (int i = 0; i < this.args.size(); i++) {
-                    this.getArg(i).docIteratorAdvancePast(maxDocid);
-                }
+                for (int i = 0; i < k; i++)
+                    c[i]++;
+            } else {
+                c[minIndex]++;
             }
         }
-    }
 
-}
\ No newline at end of file
+        return tf;
+    }
+}
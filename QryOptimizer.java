@@ -0,0 +1,359 @@
+/**
+ * Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A cost-based query optimizer that runs after QryEval.optimizeQuery.
+ *  It uses df statistics from the index to make a query cheaper to
+ *  evaluate, without changing the documents that it matches or their
+ *  scores:
+ *  <ul>
+ *  <li>Nested #SYN operators and nested #OR operators are flattened
+ *      into their parents.</li>
+ *  <li>Arguments that match no documents are removed from #SYN, #OR,
+ *      and #SUM, whose matches are the union of their arguments'.</li>
+ *  <li>Operators that look for documents that all of their arguments
+ *      match (Boolean #AND, #NEAR, and #WINDOW) visit the arguments
+ *      rarest first, so the rarest argument drives the others.</li>
+ *  <li>Terms that occur more than once in a query share one inverted
+ *      list.</li>
+ *  <li>If a phrase index is open, #NEAR/1 of two terms whose pair is in
+ *      it is replaced by a QryIopPhrase, which reads the pair's
+ *      precomputed inverted list.</li>
+ *  </ul>
+ *  Arguments are reordered with Qry.setMatchAllOrder, never in the
+ *  query tree, because #NEAR is ordered and scores are combined in
+ *  argument order.  Weighted and Indri score operators keep all of
+ *  their arguments, because default scores depend on them.
+ *  <p>
+ *  The df of an operator is estimated without evaluating it:  a union
+ *  is at most as long as its arguments together, and an intersection
+ *  is at most as long as its shortest argument.  The cost of a query is
+ *  the number of postings in the inverted lists that it reads.  explain
+ *  describes the plan, so that slow queries can be understood.
+ *  </p>
+ */
+public class QryOptimizer {
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     *  Optimize a query.
+     *  @param q A query that QryEval.optimizeQuery returned.  It must
+     *         not be initialized yet.
+     *  @param r The retrieval model.
+     *  @return The optimized query, which may be q.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public static Qry optimize(Qry q, RetrievalModel r) throws IOException {
+
+        q = optimizeTree(q, r);
+        shareInvertedLists(q);
+        return q;
+    }
+
+    /**
+     *  Optimize a query tree bottom up.
+     */
+    private static Qry optimizeTree(Qry q, RetrievalModel r) throws IOException {
+
+        if (q instanceof QryIopTerm)
+            return q;
+
+        for (int i = 0; i < q.args.size(); i++)
+            q.args.set(i, optimizeTree(q.args.get(i), r));
+
+        if (q instanceof QryIopNear) {
+            Qry phrase = getPhrase((QryIopNear) q);
+
+            if (phrase != null)
+                return phrase;
+        }
+
+        if ((q instanceof QryIopSyn) || (q instanceof QrySopOr)) {
+            flatten(q);
+        }
+
+        if ((q instanceof QryIopSyn) || (q instanceof QrySopOr) ||
+            (q instanceof QrySopSum)) {
+            removeEmptyArgs(q, r);
+        }
+
+        //  As in QryEval.optimizeQuery, only SCORE operators can have a
+        //  single argument.
+
+        if ((q.args.size() == 1) && !(q instanceof QrySopScore))
+            return q.args.get(0);
+
+        if (isConjunctive(q, r) && (q.args.size() > 1))
+            q.setMatchAllOrder(getRarestFirstOrder(q, r));
+
+        return q;
+    }
+
+    /**
+     *  Get a QryIopPhrase that can replace a #NEAR/1 of two terms.
+     *  @return The phrase, or null if the phrase index does not have
+     *          the pair, or if there is no phrase index.
+     */
+    private static Qry getPhrase(QryIopNear q) {
+
+        PhraseIndex phraseIndex = Idx.getPhraseIndex();
+
+        if ((phraseIndex == null) || (q.getDistance() != 1) || (q.args.size() != 2) ||
+            !(q.args.get(0) instanceof QryIopTerm) || !(q.args.get(1) instanceof QryIopTerm))
+            return null;
+
+        QryIopTerm t1 = (QryIopTerm) q.args.get(0);
+        QryIopTerm t2 = (QryIopTerm) q.args.get(1);
+
+        if (!t1.getField().equals(t2.getField()) ||
+            (phraseIndex.getDf(t1.getField(), t1.getTerm(), t2.getTerm()) == 0))
+            return null;
+
+        return new QryIopPhrase(t1.getTerm(), t2.getTerm(), t1.getField());
+    }
+
+    /**
+     *  Replace each argument that has the same type as q with its own
+     *  arguments, in place.  #SYN (#SYN (a b) c) becomes #SYN (a b c).
+     */
+    private static void flatten(Qry q) {
+
+        for (int i = q.args.size() - 1; i >= 0; i--) {
+            Qry q_i = q.args.get(i);
+
+            if (q_i.getClass() == q.getClass()) {
+                q.args.remove(i);
+                q.args.addAll(i, q_i.args);
+            }
+        }
+    }
+
+    /**
+     *  Remove the arguments of a union operator that match no documents.
+     *  One argument is kept if none of them match, so that the operator
+     *  still has a field and an (empty) inverted list.
+     */
+    private static void removeEmptyArgs(Qry q, RetrievalModel r)
+            throws IOException {
+
+        for (int i = q.args.size() - 1; (i >= 0) && (q.args.size() > 1); i--) {
+            if (estimateDf(q.args.get(i), r) == 0)
+                q.removeArg(i);
+        }
+    }
+
+    /**
+     *  Indicates whether a query operator only matches documents that
+     *  all of its arguments match.
+     */
+    private static boolean isConjunctive(Qry q, RetrievalModel r) {
+
+        if ((q instanceof QryIopNear) || (q instanceof QryIopWindow))
+            return true;
+
+        return (q instanceof QrySopAnd) && !(r instanceof RetrievalModelIndri);
+    }
+
+    /**
+     *  Get the argument indexes of a query operator, sorted by estimated
+     *  df.  Arguments that have the same df stay in argument order.
+     */
+    private static int[] getRarestFirstOrder(Qry q, RetrievalModel r)
+            throws IOException {
+
+        int n = q.args.size();
+        final long[] dfs = new long[n];
+        Integer[] order = new Integer[n];
+
+        for (int i = 0; i < n; i++) {
+            dfs[i] = estimateDf(q.args.get(i), r);
+            order[i] = i;
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare(dfs[a], dfs[b]);
+            }
+        });
+
+        int[] result = new int[n];
+
+        for (int i = 0; i < n; i++)
+            result[i] = order[i];
+
+        return result;
+    }
+
+    /**
+     *  Estimate the number of documents that a query operator matches,
+     *  without evaluating it.
+     *  @param q A query operator.
+     *  @param r The retrieval model, which determines whether #AND is a
+     *         union (Indri) or an intersection (Boolean).
+     *  @return An upper bound on the df of q.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public static long estimateDf(Qry q, RetrievalModel r) throws IOException {
+
+        if (q instanceof QryIopTerm) {
+            QryIopTerm t = (QryIopTerm) q;
+            return TermStats.getDf(t.getField(), t.getTerm());
+        }
+
+        if (q instanceof QryIopPhrase)
+            return ((QryIopPhrase) q).getPhraseDf();
+
+        long sum = 0;
+        long min = Long.MAX_VALUE;
+
+        for (Qry q_i : q.args) {
+            long df = estimateDf(q_i, r);
+            sum += df;
+            min = Math.min(min, df);
+        }
+
+        if (q.args.size() == 0)
+            return 0;
+
+        if (isConjunctive(q, r) ||
+            ((q instanceof QryIop) && !(q instanceof QryIopSyn)))
+            return min;
+
+        return Math.min(sum, (long) Idx.INDEXREADER.maxDoc());
+    }
+
+    /**
+     *  Estimate the cost of evaluating a query, i.e., the number of
+     *  postings in the inverted lists that it reads.  Shared inverted
+     *  lists are counted once, and a phrase costs as much as its df.
+     *  @param q An optimized query.
+     *  @return The estimated cost.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public static long estimateCost(Qry q) throws IOException {
+
+        long cost = 0;
+
+        for (QryIopTerm t : getTerms(q).values()) {
+            cost += TermStats.getDf(t.getField(), t.getTerm());
+        }
+
+        return cost + getPhraseCost(q);
+    }
+
+    /**
+     *  Get the number of postings of the phrases in a query.
+     */
+    private static long getPhraseCost(Qry q) {
+
+        if (q instanceof QryIopPhrase)
+            return ((QryIopPhrase) q).getPhraseDf();
+
+        long cost = 0;
+
+        for (Qry q_i : q.args)
+            cost += getPhraseCost(q_i);
+
+        return cost;
+    }
+
+    /**
+     *  Describe the plan of an optimized query.  Each operator shows its
+     *  estimated df, and operators that visit their arguments rarest
+     *  first show that order, e.g., #NEAR/1[df<=3, order=1,0]( a b ).
+     *  @param q An optimized query.
+     *  @param r The retrieval model.
+     *  @return The plan.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public static String explain(Qry q, RetrievalModel r) throws IOException {
+
+        if ((q instanceof QryIopTerm) || (q instanceof QryIopPhrase))
+            return q + "[df=" + estimateDf(q, r) + "]";
+
+        StringBuilder result = new StringBuilder();
+
+        result.append(q.getDisplayName());
+        result.append("[df<=").append(estimateDf(q, r));
+
+        if (isConjunctive(q, r) && (q.args.size() > 1)) {
+            int[] order = getRarestFirstOrder(q, r);
+
+            result.append(", order=");
+
+            for (int i = 0; i < order.length; i++)
+                result.append((i > 0) ? "," : "").append(order[i]);
+        }
+
+        result.append("]( ");
+
+        for (Qry q_i : q.args)
+            result.append(explain(q_i, r)).append(" ");
+
+        return result.append(")").toString();
+    }
+
+    /**
+     *  Make terms that occur more than once in a query share one
+     *  inverted list.
+     */
+    private static void shareInvertedLists(Qry q) {
+
+        Map<String, List<QryIopTerm>> terms = new HashMap<String, List<QryIopTerm>>();
+
+        collectTerms(q, terms);
+
+        for (List<QryIopTerm> group : terms.values()) {
+            if (group.size() > 1) {
+                InvList[] sharedList = new InvList[1];
+
+                for (QryIopTerm t : group)
+                    t.setSharedList(sharedList);
+            }
+        }
+    }
+
+    /**
+     *  Get one term operator for each distinct term in a query.
+     */
+    private static Map<String, QryIopTerm> getTerms(Qry q) {
+
+        Map<String, List<QryIopTerm>> terms = new HashMap<String, List<QryIopTerm>>();
+        Map<String, QryIopTerm> result = new HashMap<String, QryIopTerm>();
+
+        collectTerms(q, terms);
+
+        for (Map.Entry<String, List<QryIopTerm>> e : terms.entrySet())
+            result.put(e.getKey(), e.getValue().get(0));
+
+        return result;
+    }
+
+    /**
+     *  Collect the term operators of a query, grouped by field and term.
+     */
+    private static void collectTerms(Qry q, Map<String, List<QryIopTerm>> terms) {
+
+        if (q instanceof QryIopTerm) {
+            QryIopTerm t = (QryIopTerm) q;
+            String key = t.getField() + " " + t.getTerm();
+            List<QryIopTerm> group = terms.get(key);
+
+            if (group == null) {
+                group = new ArrayList<QryIopTerm>();
+                terms.put(key, group);
+            }
+
+            group.add(t);
+            return;
+        }
+
+        for (Qry q_i : q.args)
+            collectTerms(q_i, terms);
+    }
+}
@@ -28,6 +28,29 @@ public abstract class QrySop extends Qry {
     return 0.0;
   }
 
+  /**
+   *  Get the log of the score of the document that docIteratorHasMatch
+   *  matched.  Operators that combine scores in log space override
+   *  this, so that their parents can use the log directly.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The log of the document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getLogScore (RetrievalModel r) throws IOException {
+    return Math.log (this.getScore (r));
+  }
+
+  /**
+   *  Get the log of the default score of a document.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docId The internal document id.
+   *  @return The log of the default score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getLogDefaultScore (RetrievalModel r, int docId) throws IOException {
+    return Math.log (this.getDefaultScore (r, docId));
+  }
+
   /**
    *  Initialize the query operator (and its arguments), including any
    *  internal iterators.  If the query operator is of type QryIop, it
@@ -37,6 +60,7 @@ public abstract class QrySop extends Qry {
    *  @throws IOException Error accessing the Lucene index.
    */
   public void initialize(RetrievalModel r) throws IOException {
+    this.docIteratorClearArgHeap ();
     for (Qry q_i: this.args) {
       q_i.initialize (r);
     }
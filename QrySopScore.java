@@ -13,9 +13,38 @@ public class QrySopScore extends QrySop {
 
   /**
    *  Document-independent values that should be determined just once.
-   *  Some retrieval models have these, some don't.
+   *  Some retrieval models have these, some don't.  They are computed
+   *  by initialize, after the argument's df and ctf are known.
    */
-  
+  private ScoringContext context = null;
+
+  /**
+   *  The per-term and per-field constants of a retrieval model.  Each
+   *  value is computed by the same expression as in the scoring
+   *  formula, so scores do not change.
+   */
+  private static class ScoringContext {
+
+    //  BM25
+
+    double rsjWeight;
+    double userWeight;
+
+    /** k1 * ((1-b) + b * docLen / avgDocLen) of each document. */
+    double[] lengthNorms;
+
+    double k1;
+    double b;
+    double avgDocLen;
+
+    //  Indri
+
+    double mu;
+    double oneMinusLambda;
+    double muQiUnderC;
+    double lambdaQiUnderC;
+  }
+
   /**
    *  Indicates whether the query has a match.
    *  @param r The retrieval model that determines what is a match
@@ -66,6 +95,48 @@ public class QrySopScore extends QrySop {
   public void initialize (RetrievalModel r) throws IOException {
     Qry q = this.args.get (0);
     q.initialize (r);
+    this.context = this.createContext (r);
+  }
+
+  /**
+   *  Compute the scoring constants of a retrieval model.  The argument
+   *  must be initialized, so that its df and ctf are known.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The scoring constants.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  private ScoringContext createContext (RetrievalModel r) throws IOException {
+
+    ScoringContext c = new ScoringContext();
+    String field = this.getArg(0).getField();
+
+    if (r instanceof RetrievalModelBM25) {
+      RetrievalModelBM25 bm25 = (RetrievalModelBM25) r;
+      double k3 = bm25.getK3();
+      long N = Idx.getNumDocs();
+      long df = this.getArg(0).getDf();
+      int qtf = 1;
+
+      c.rsjWeight = Math.max(0, Math.log(((double)N-(double)df+0.5)/((double)df+0.5)));
+      c.userWeight = (k3 + 1) * (double)qtf/ (k3 + (double)qtf);
+      c.lengthNorms = Idx.getBM25LengthNorms(field, bm25.getK1(), bm25.getB());
+      c.k1 = bm25.getK1();
+      c.b = bm25.getB();
+      c.avgDocLen = (double) Idx.getSumOfFieldLengths(field) /
+                    (double) Idx.getDocCount(field);
+    } else if (r instanceof RetrievalModelIndri) {
+      RetrievalModelIndri indri = (RetrievalModelIndri) r;
+      long ctf = this.getArg(0).getCtf();
+      long sumDocLen = Idx.getSumOfFieldLengths(field);
+      double qiUnderC = (double)ctf / (double)sumDocLen;
+
+      c.mu = indri.getMu();
+      c.oneMinusLambda = 1 - indri.getLambda();
+      c.muQiUnderC = c.mu * qiUnderC;
+      c.lambdaQiUnderC = indri.getLambda() * qiUnderC;
+    }
+
+    return c;
   }
 
   /**
@@ -137,7 +208,7 @@ public class QrySopScore extends QrySop {
           throws IOException {
     // score op has only one arg
     if(this.args.size() == 1) {
-      return this.getArg(0).docIteratorGetMatchPosting().tf;
+      return this.getArg(0).docIteratorGetMatchTf();
     }
     else {
       throw new IllegalArgumentException("The number of arguments is incorrect");
@@ -153,27 +224,53 @@ public class QrySopScore extends QrySop {
   private double calculateBM25Score(RetrievalModelBM25 r) throws IOException {
     // score op has only one arg
     if(this.args.size() == 1) {
-      // compute BM25 score according to formula
-      double k1 = r.getK1(), k3 = r.getK3();
-      double b = r.getB();
-      long N = Idx.getNumDocs();
-      long tf = this.getArg(0).docIteratorGetMatchPosting().tf;
-      long df = this.getArg(0).getDf();
-      String field = this.getArg(0).getField();
+      long tf = this.getArg(0).docIteratorGetMatchTf();
       int docId = this.docIteratorGetMatch();
-      int qtf = 1;
-      double docLen = Idx.getFieldLength(field, docId);
-      double avgDocLen = (double)Idx.getSumOfFieldLengths(field) / (double)Idx.getDocCount(field);
-      double floorRSJWeight = Math.max(0, Math.log(((double)N-(double)df+0.5)/((double)df+0.5)));
-      double tfWeight = (double)tf / ((double)tf + k1 * ((1-b)+b*docLen/avgDocLen));
-      double userWeight = (k3 + 1) * (double)qtf/ (k3 + (double)qtf);
-      return floorRSJWeight * tfWeight * userWeight;
+      return this.calculateBM25ScoreByTf(r, tf, docId);
     }
     else {
       throw new IllegalArgumentException("The number of arguments is incorrect");
     }
   }
 
+  /**
+   *  calculate the BM25 score of a document that has the specified tf.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param tf The term frequency in the document.
+   *  @param docId The internal document id.
+   *  @return The document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  double calculateBM25ScoreByTf(RetrievalModelBM25 r, long tf, int docId)
+          throws IOException {
+    // compute BM25 score according to formula
+    ScoringContext c = this.context;
+    double tfWeight = (double)tf / ((double)tf + c.lengthNorms[docId]);
+    return c.rsjWeight * tfWeight * c.userWeight;
+  }
+
+  /**
+   *  calculate an upper bound on the BM25 score of the documents that
+   *  have at most the specified tf and at least the specified length.
+   *  The length normalization is computed by the same expression as
+   *  in Idx.getBM25LengthNorms, and the score by the same expression
+   *  as in calculateBM25ScoreByTf, so the bound is never smaller than
+   *  a score that it bounds.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param maxTf The largest term frequency.
+   *  @param minLength The smallest field length.
+   *  @return The upper bound.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  double calculateBM25ScoreBound(RetrievalModelBM25 r, long maxTf, int minLength)
+          throws IOException {
+    ScoringContext c = this.context;
+    double docLen = minLength;
+    double lengthNorm = c.k1 * ((1-c.b)+c.b*docLen/c.avgDocLen);
+    double tfWeight = (double)maxTf / ((double)maxTf + lengthNorm);
+    return c.rsjWeight * tfWeight * c.userWeight;
+  }
+
   /**
    *  calculate score for the Indri retrieval model.
    *  @param r The retrieval model that determines how scores are calculated.
@@ -183,7 +280,7 @@ public class QrySopScore extends QrySop {
   private double calculateIndriScore(RetrievalModelIndri r) throws IOException {
     // score op has only one arg
     if(this.args.size() == 1) {
-      long tf = this.getArg(0).docIteratorGetMatchPosting().tf;
+      long tf = this.getArg(0).docIteratorGetMatchTf();
       int docId = this.docIteratorGetMatch();
       return this.calculateIndriScoreByTf(r, tf, docId);
     }
@@ -192,19 +289,21 @@ public class QrySopScore extends QrySop {
     }
   }
 
-  private double calculateIndriScoreByTf(RetrievalModelIndri r, long tf, int docId)
+  /**
+   *  calculate the Indri score of a document that has the specified tf.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param tf The term frequency in the document, or 0 for the default score.
+   *  @param docId The internal document id.
+   *  @return The document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  double calculateIndriScoreByTf(RetrievalModelIndri r, long tf, int docId)
           throws IOException {
-    String field = this.getArg(0).getField();
-    long ctf = this.getArg(0).getCtf();
-    int docLen = Idx.getFieldLength(field, docId);
-    long sumDocLen = Idx.getSumOfFieldLengths(field);
-    double qiUnderC = (double)ctf / (double)sumDocLen;
-    // acquire parameters
-    double mu = r.getMu();
-    double lambda = r.getLambda();
+    ScoringContext c = this.context;
+    int docLen = Idx.getFieldLength(this.getArg(0).getField(), docId);
     // smoothing
-    return (1- lambda) * (((double)tf + mu * qiUnderC)/((double)docLen + mu))
-            + lambda * qiUnderC;
+    return c.oneMinusLambda * (((double)tf + c.muQiUnderC)/((double)docLen + c.mu))
+            + c.lambdaQiUnderC;
   }
 
 }
@@ -26,6 +26,50 @@ public class QrySopWAnd extends QrySop {
         sumWeight -= weight;
     }
 
+    /**
+     *  Get the weight of an argument.
+     *  @param i The index of the argument.
+     *  @return The argument's weight.
+     */
+    public double getWeight(int i) {
+        return this.weights.get(i);
+    }
+
+    /**
+     *  Get the sum of the argument weights.
+     */
+    public double getSumWeight() {
+        return this.sumWeight;
+    }
+
+    /**
+     *  The exponent of each argument in the Indri geometric mean, i.e.,
+     *  its weight in log space.  Set by initialize.
+     */
+    private double[] exponents = new double[0];
+
+    /**
+     *  The document whose Indri log score was calculated last, and its
+     *  score.  Parents and getScore may ask for a document's score
+     *  more than once, so it is only calculated once per document.
+     */
+    private int memoDocid = Qry.INVALID_DOCID;
+    private double memoScore;
+
+    /**
+     *  Initialize the query operator and its arguments, and compute the
+     *  argument exponents.
+     *  @param r A retrieval model that guides initialization
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public void initialize(RetrievalModel r) throws IOException {
+        super.initialize(r);
+        this.memoDocid = Qry.INVALID_DOCID;
+        this.exponents = new double[this.args.size()];
+        for (int i = 0; i < this.exponents.length; i++)
+            this.exponents[i] = this.weights.get(i) / this.sumWeight;
+    }
+
     /**
      *  Indicates whether the query has a match.
      *  @param r The retrieval model that determines what is a match
@@ -68,50 +112,85 @@ public class QrySopWAnd extends QrySop {
     }
 
     /**
-     *  calculate ranked score the RankedBoolean retrieval model.
+     *  calculate score for the Indri retrieval model.
      *  @param r The retrieval model that determines how scores are calculated.
      *  @return The document score.
      *  @throws IOException Error accessing the Lucene index
      */
     public double calculateIndriScore(RetrievalModel r) throws IOException {
-        double product = 1.0;
         if(this.args.size() == 0)
             return 0.0;
-        for (int i = 0; i < this.args.size(); i++) {
-            // must at least has an implied score
-            double weight = this.weights.get(i);
-            if(this.args.get(i).docIteratorHasMatchCache() &&
-                    this.args.get(i).docIteratorGetMatch() == this.docIteratorGetMatch()) {
-                product *= Math.pow(((QrySop) this.args.get(i)).getScore(r), weight/sumWeight);
-            }
-            else {
-                product *= Math.pow(
-                        ((QrySop) this.args.get(i)).getDefaultScore(r, this.docIteratorGetMatch()),
-                        weight/sumWeight);
-            }
-        }
-        return product;
+        return Math.exp(this.calculateIndriLogScore(r, this.docIteratorGetMatch()));
     }
 
     public double getDefaultScore(RetrievalModel r, int docId) throws IOException {
         if (r instanceof RetrievalModelIndri){
-            double product = 1.0;
-            for (int i = 0; i < this.args.size(); i++) {
-                double weight = this.weights.get(i);
-                if(this.args.get(i).docIteratorHasMatchCache() &&
-                        this.args.get(i).docIteratorGetMatch() == docId) {
-                    product *= Math.pow(((QrySop) this.args.get(i)).getScore(r), weight/sumWeight);
-                }
-                else {
-                    product *= Math.pow(
-                            ((QrySop) this.args.get(i)).getDefaultScore(r, docId),
-                            weight/sumWeight);
-                }
-            }
-            return product;
+            return Math.exp(this.calculateIndriLogScore(r, docId));
         } else {
             throw new IllegalArgumentException
                     (r.getClass().getName() + " doesn't support the SCORE operator.");
         }
     }
+
+    /**
+     *  Get the log of the score of the document that docIteratorHasMatch
+     *  matched.  Indri beliefs are combined in log space, so nested
+     *  belief operators do not convert their scores out of log space.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The log of the document score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    public double getLogScore(RetrievalModel r) throws IOException {
+        if (!(r instanceof RetrievalModelIndri))
+            return super.getLogScore(r);
+        if (!this.docIteratorHasMatch(r) || (this.args.size() == 0))
+            return Double.NEGATIVE_INFINITY;
+        return this.calculateIndriLogScore(r, this.docIteratorGetMatch());
+    }
+
+    /**
+     *  Get the log of the default score of a document.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @param docId The internal document id.
+     *  @return The log of the default score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    public double getLogDefaultScore(RetrievalModel r, int docId) throws IOException {
+        if (r instanceof RetrievalModelIndri) {
+            return this.calculateIndriLogScore(r, docId);
+        } else {
+            throw new IllegalArgumentException
+                    (r.getClass().getName() + " doesn't support the SCORE operator.");
+        }
+    }
+
+    /**
+     *  Calculate the log of the Indri score of a document, i.e., the
+     *  weighted sum of the log scores of the arguments.  Arguments that
+     *  do not match the document contribute their default scores.  An
+     *  argument with exponent 0 contributes nothing, as Math.pow(s, 0)
+     *  is 1 for every s.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @param docId The internal document id.
+     *  @return The log of the document score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    private double calculateIndriLogScore(RetrievalModel r, int docId) throws IOException {
+        if (docId == this.memoDocid)
+            return this.memoScore;
+        double sum = 0.0;
+        for (int i = 0; i < this.args.size(); i++) {
+            double exponent = this.exponents[i];
+            if (exponent == 0.0)
+                continue;
+            QrySop q_i = (QrySop) this.args.get(i);
+            if (q_i.docIteratorHasMatchCache() && q_i.docIteratorGetMatch() == docId)
+                sum += exponent * q_i.getLogScore(r);
+            else
+                sum += exponent * q_i.getLogDefaultScore(r, docId);
+        }
+        this.memoDocid = docId;
+        this.memoScore = sum;
+        return sum;
+    }
 }
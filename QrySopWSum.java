@@ -14,6 +14,14 @@ public class QrySopWSum extends QrySop {
 
     private double sumWeight = 0;
 
+    /**
+     *  The document whose Indri score was calculated last, and its
+     *  score.  Parents and getScore may ask for a document's score
+     *  more than once, so it is only calculated once per document.
+     */
+    private int memoDocid = Qry.INVALID_DOCID;
+    private double memoScore;
+
     public void addWeight(String token) {
         Double weight = Double.parseDouble(token);
         weights.add(weight);
@@ -26,6 +34,32 @@ public class QrySopWSum extends QrySop {
         sumWeight -= weight;
     }
 
+    /**
+     *  Get the weight of an argument.
+     *  @param i The index of the argument.
+     *  @return The argument's weight.
+     */
+    public double getWeight(int i) {
+        return this.weights.get(i);
+    }
+
+    /**
+     *  Get the sum of the argument weights.
+     */
+    public double getSumWeight() {
+        return this.sumWeight;
+    }
+
+    /**
+     *  Initialize the query operator and its arguments.
+     *  @param r A retrieval model that guides initialization
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public void initialize(RetrievalModel r) throws IOException {
+        super.initialize(r);
+        this.memoDocid = Qry.INVALID_DOCID;
+    }
+
     /**
      *  Indicates whether the query has a match.
      *  @param r The retrieval model that determines what is a match
@@ -68,48 +102,53 @@ public class QrySopWSum extends QrySop {
     }
 
     /**
-     *  calculate ranked score the RankedBoolean retrieval model.
+     *  calculate score for the Indri retrieval model.
      *  @param r The retrieval model that determines how scores are calculated.
      *  @return The document score.
      *  @throws IOException Error accessing the Lucene index
      */
     public double calculateIndriScore(RetrievalModel r) throws IOException {
-        double average = 0.0;
         if(this.args.size() == 0)
             return 0.0;
+        return this.calculateIndriScore(r, this.docIteratorGetMatch());
+    }
+
+    public double getDefaultScore(RetrievalModel r, int docId) throws IOException {
+        if (r instanceof RetrievalModelIndri){
+            return this.calculateIndriScore(r, docId);
+        } else {
+            throw new IllegalArgumentException
+                    (r.getClass().getName() + " doesn't support the SCORE operator.");
+        }
+    }
+
+    /**
+     *  Calculate the Indri score of a document, i.e., the weighted
+     *  average of the scores of the arguments.  Arguments that do not
+     *  match the document contribute their default scores.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @param docId The internal document id.
+     *  @return The document score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    private double calculateIndriScore(RetrievalModel r, int docId) throws IOException {
+        if (docId == this.memoDocid)
+            return this.memoScore;
+        double average = 0.0;
         for (int i = 0; i < this.args.size(); i++) {
             // must at least has an implied score
             double weight = this.weights.get(i);
             if(this.args.get(i).docIteratorHasMatchCache() &&
-                    this.args.get(i).docIteratorGetMatch() == this.docIteratorGetMatch()) {
+                    this.args.get(i).docIteratorGetMatch() == docId) {
                 average += weight/sumWeight * ((QrySop) this.args.get(i)).getScore(r);
             }
             else {
                 average += weight/sumWeight *
-                        ((QrySop) this.args.get(i)).getDefaultScore(r, this.docIteratorGetMatch());
+                        ((QrySop) this.args.get(i)).getDefaultScore(r, docId);
             }
         }
+        this.memoDocid = docId;
+        this.memoScore = average;
         return average;
     }
-
-    public double getDefaultScore(RetrievalModel r, int docId) throws IOException {
-        if (r instanceof RetrievalModelIndri){
-            double average = 0.0;
-            for (int i = 0; i < this.args.size(); i++) {
-                double weight = this.weights.get(i);
-                if(this.args.get(i).docIteratorHasMatchCache() &&
-                        this.args.get(i).docIteratorGetMatch() == docId) {
-                    average += weight/sumWeight * ((QrySop) this.args.get(i)).getScore(r);
-                }
-                else {
-                    average += weight/sumWeight *
-                            ((QrySop) this.args.get(i)).getDefaultScore(r, docId);
-                }
-            }
-            return average;
-        } else {
-            throw new IllegalArgumentException
-                    (r.getClass().getName() + " doesn't support the SCORE operator.");
-        }
-    }
 }
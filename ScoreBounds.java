@@ -0,0 +1,85 @@
+/**
+ * Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.util.*;
+
+/**
+ *  Score upper bounds that are shared by the dynamic pruning
+ *  evaluators, BlockMaxWand and IndriMaxScore:  a bounded cache of the
+ *  bounds of inverted lists, and the test of whether a bound can reach
+ *  the score threshold of the top k documents.  The cache is cleared
+ *  when Idx opens an index.
+ */
+class ScoreBounds {
+
+    //  --------------- Constants and variables ---------------------
+
+    /**
+     *  Bounds are summed in a different order than scores, and may be
+     *  computed in log space, so they may differ from the scores that
+     *  they bound in the last bits.  A document is only skipped if its
+     *  bound is below the threshold by more than this amount, relative
+     *  to the threshold if the threshold is larger than 1.
+     */
+    private static final double EPSILON = 1e-9;
+
+    /**
+     *  The maximum number of bounds that are kept across queries.
+     */
+    private static final int CACHE_ENTRIES = 4096;
+
+    /**
+     *  Bounds of inverted lists, in least recently used order.  The key
+     *  identifies the list and the retrieval model parameters.
+     */
+    private static final Map<String, Double> CACHE =
+            Collections.synchronizedMap(
+                    new LinkedHashMap<String, Double>(64, 0.75f, true) {
+                        protected boolean removeEldestEntry(Map.Entry<String, Double> e) {
+                            return this.size() > CACHE_ENTRIES;
+                        }
+                    });
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     *  Get a cached bound.
+     *  @param key The list and retrieval model parameters.
+     *  @return The bound, or null if it is not cached.
+     */
+    static Double get(String key) {
+        return CACHE.get(key);
+    }
+
+    /**
+     *  Cache a bound, evicting the least recently used bound if the
+     *  cache is full.
+     *  @param key The list and retrieval model parameters.
+     *  @param bound The bound.
+     */
+    static void put(String key, double bound) {
+        CACHE.put(key, bound);
+    }
+
+    /**
+     *  Remove every cached bound, e.g., because a different index was
+     *  opened.
+     */
+    static void clear() {
+        CACHE.clear();
+    }
+
+    /**
+     *  Indicates whether an upper bound is safely below a threshold.
+     *  Documents whose bound ties with the threshold are scored, and
+     *  the TopKCollector breaks the tie.  NaN bounds and thresholds
+     *  never prune.
+     *  @param bound An upper bound on a score.
+     *  @param threshold The threshold, in the same space as the bound.
+     *  @return True if the bound can not reach the threshold.
+     */
+    static boolean isBelow(double bound, double threshold) {
+        return bound < threshold - EPSILON * Math.max(1.0, Math.abs(threshold));
+    }
+}
@@ -8,41 +8,63 @@ import java.util.*;
 /**
  *  This class implements the document score list data structure
  *  and provides methods for accessing and manipulating them.
+ *  <p>
+ *  The list is stored as parallel columns (docids, scores, and external
+ *  ids) rather than as one object per entry.  External ids are only
+ *  needed to break score ties, so they are resolved lazily; the
+ *  external id column holds null until an entry's id is needed.  If
+ *  the index has an external id ordinal table, ties are broken by
+ *  comparing ordinals instead, and ids are only resolved for output.
+ *  </p>
  */
 public class ScoreList {
 
-    //  A utility class to create a <internalDocid, externalDocid, score>
-    //  object.
+    //  --------------- Constants and variables ---------------------
 
-    private class ScoreListEntry {
-        private int docid;
-        private String externalId;
-        private double score;
+    private static final int INITIAL_CAPACITY = 16;
 
-        private ScoreListEntry(int internalDocid, double score) {
-            this.docid = internalDocid;
-            this.score = score;
+    /**
+     *  Ranges that are at most this long are sorted by insertion sort.
+     */
+    private static final int INSERTION_SORT_THRESHOLD = 12;
 
-            try {
-                this.externalId = Idx.getExternalDocid(this.docid);
-            } catch (IOException ex) {
-                ex.printStackTrace();
-            }
-        }
-    }
+    private int size = 0;
+    private int[] docids = new int[INITIAL_CAPACITY];
+    private double[] scores = new double[INITIAL_CAPACITY];
+    private String[] externalIds = new String[INITIAL_CAPACITY];
+
+    //  --------------- Methods ---------------------------------------
 
     /**
-     *  A list of document ids and scores.
+     *  Append a document score to a score list.
+     *  @param docid An internal document id.
+     *  @param score The document's score.
      */
-    private List<ScoreListEntry> scores = new ArrayList<ScoreListEntry>();
+    public void add(int docid, double score) {
+        this.add(docid, score, null);
+    }
 
     /**
      *  Append a document score to a score list.
      *  @param docid An internal document id.
      *  @param score The document's score.
+     *  @param externalId The document's external id, or null if it is
+     *         not known yet.
      */
-    public void add(int docid, double score) {
-        scores.add(new ScoreListEntry(docid, score));
+    public void add(int docid, double score, String externalId) {
+
+        if (this.size == this.docids.length) {
+            int capacity = 2 * this.size;
+
+            this.docids = Arrays.copyOf(this.docids, capacity);
+            this.scores = Arrays.copyOf(this.scores, capacity);
+            this.externalIds = Arrays.copyOf(this.externalIds, capacity);
+        }
+
+        this.docids[this.size] = docid;
+        this.scores[this.size] = score;
+        this.externalIds[this.size] = externalId;
+        this.size++;
     }
 
     /**
@@ -51,7 +73,23 @@ public class ScoreList {
      *  @return The internal document id.
      */
     public int getDocid(int n) {
-        return this.scores.get(n).docid;
+        this.checkIndex(n);
+        return this.docids[n];
+    }
+
+    /**
+     *  Get the external id of the n'th entry.
+     *  @param n The index of the requested document.
+     *  @return The external document id.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public String getExternalId(int n) throws IOException {
+        this.checkIndex(n);
+
+        if (this.externalIds[n] == null)
+            this.externalIds[n] = Idx.getExternalDocid(this.docids[n]);
+
+        return this.externalIds[n];
     }
 
     /**
@@ -60,7 +98,8 @@ public class ScoreList {
      *  @return The document's score.
      */
     public double getDocidScore(int n) {
-        return this.scores.get(n).score;
+        this.checkIndex(n);
+        return this.scores[n];
     }
 
     /**
@@ -69,7 +108,8 @@ public class ScoreList {
      *  @param score The new score.
      */
     public void setDocidScore(int n, double score) {
-        this.scores.get(n).score = score;
+        this.checkIndex(n);
+        this.scores[n] = score;
     }
 
     /**
@@ -77,31 +117,109 @@ public class ScoreList {
      *  @return The size of the posting list.
      */
     public int size() {
-        return this.scores.size();
+        return this.size;
     }
 
-    /*
-     *  Compare two ScoreListEntry objects.  Sort by score, then
-     *  internal docid.
+    /**
+     *  Columns are larger than the list, so check indexes explicitly.
      */
-    public class ScoreListComparator implements Comparator<ScoreListEntry> {
-
-        @Override
-        public int compare(ScoreListEntry s1, ScoreListEntry s2) {
-            if (s1.score > s2.score)
-                return -1;
-            else if (s1.score < s2.score)
-                return 1;
-            else
-                return s1.externalId.compareTo(s2.externalId);
-        }
+    private void checkIndex(int n) {
+        if ((n < 0) || (n >= this.size))
+            throw new IndexOutOfBoundsException("Index: " + n + ", Size: " + this.size);
+    }
+
+    /**
+     *  Compare two entries.  Sort by score, then external docid.  A NaN
+     *  score ties with every score.
+     *  @return A negative number if entry i sorts before entry j, a
+     *          positive number if it sorts after, otherwise 0.
+     */
+    private int compare(int i, int j) throws IOException {
+        if (this.scores[i] > this.scores[j])
+            return -1;
+        else if (this.scores[i] < this.scores[j])
+            return 1;
+
+        int[] ordinals = Idx.getExternalIdOrdinals();
+
+        if (ordinals != null)
+            return Integer.compare(ordinals[this.docids[i]], ordinals[this.docids[j]]);
+        else
+            return this.getExternalId(i).compareTo(this.getExternalId(j));
     }
 
     /**
-     *  Sort the list by score and external document id.
+     *  Swap two entries.
+     */
+    private void swap(int i, int j) {
+        int docid = this.docids[i];
+        this.docids[i] = this.docids[j];
+        this.docids[j] = docid;
+
+        double score = this.scores[i];
+        this.scores[i] = this.scores[j];
+        this.scores[j] = score;
+
+        String externalId = this.externalIds[i];
+        this.externalIds[i] = this.externalIds[j];
+        this.externalIds[j] = externalId;
+    }
+
+    /**
+     *  Sort the list by score and external document id.  The columns
+     *  are sorted in place, so no per-entry objects are created, and
+     *  external ids are only resolved for entries whose scores tie.
      */
     public void sort() {
-        Collections.sort(this.scores, new ScoreListComparator());
+        try {
+            this.sort(0, this.size - 1);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Unable to read external ids", ex);
+        }
+    }
+
+    /**
+     *  Quicksort the entries between low and high, inclusive.
+     */
+    private void sort(int low, int high) throws IOException {
+
+        while (high - low > INSERTION_SORT_THRESHOLD) {
+
+            //  Median-of-three pivot, moved to high.
+
+            int mid = (low + high) >>> 1;
+
+            if (this.compare(mid, low) < 0)
+                this.swap(mid, low);
+            if (this.compare(high, low) < 0)
+                this.swap(high, low);
+            if (this.compare(mid, high) < 0)
+                this.swap(mid, high);
+
+            int store = low;
+
+            for (int i = low; i < high; i++) {
+                if (this.compare(i, high) < 0)
+                    this.swap(i, store++);
+            }
+
+            this.swap(store, high);
+
+            //  Recurse into the smaller part, loop on the larger one.
+
+            if (store - low < high - store) {
+                this.sort(low, store - 1);
+                low = store + 1;
+            } else {
+                this.sort(store + 1, high);
+                high = store - 1;
+            }
+        }
+
+        for (int i = low + 1; i <= high; i++) {
+            for (int j = i; (j > low) && (this.compare(j, j - 1) < 0); j--)
+                this.swap(j, j - 1);
+        }
     }
 
     /**
@@ -110,9 +228,12 @@ public class ScoreList {
      * @param num Number of results to keep.
      */
     public void truncate(int num) {
-        List<ScoreListEntry> truncated = new ArrayList<ScoreListEntry>(this.scores.subList(0,
-                Math.min(num, scores.size())));
-        this.scores.clear();
-        this.scores = truncated;
+        this.size = Math.min(Math.max(num, 0), this.size);
+
+        int capacity = Math.max(this.size, 1);
+
+        this.docids = Arrays.copyOf(this.docids, capacity);
+        this.scores = Arrays.copyOf(this.scores, capacity);
+        this.externalIds = Arrays.copyOf(this.externalIds, capacity);
     }
 }
@@ -0,0 +1,227 @@
+/**
+ * Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  Term-at-a-time (TAAT) evaluation of flat queries, i.e., a BM25
+ *  #SUM, a Boolean #OR, or an Indri #WSUM whose arguments are all
+ *  #SCORE operators.  Instead of merging the arguments' inverted lists
+ *  document by document, each inverted list is read from start to end
+ *  in turn, and its scores are added to a dense accumulator array that
+ *  has one entry per document.  This avoids the per-document merge,
+ *  and it reads each inverted list sequentially.
+ *  <p>
+ *  Scores are computed by the same QrySopScore methods as
+ *  document-at-a-time evaluation, and the arguments are visited in the
+ *  same order, so each document's score is combined from the same
+ *  values in the same order, and it is identical.  Accumulators are
+ *  doubles for the same reason.
+ *  </p><p>
+ *  The accumulator and the set of touched documents are proportional
+ *  to the size of the index, so term-at-a-time evaluation pays off
+ *  when the query's inverted lists are long.  isPreferred is the
+ *  planner that makes this choice.
+ *  </p>
+ */
+public class TermAtATime {
+
+    //  --------------- Constants and variables ---------------------
+
+    /**
+     *  The planner prefers term-at-a-time evaluation when the query's
+     *  inverted lists have at least this many postings per document in
+     *  the index.
+     */
+    private static final double MIN_POSTINGS_PER_DOC = 0.25;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     *  Indicates whether a query can be evaluated term-at-a-time.
+     *  @param q An optimized query.
+     *  @param r The retrieval model.
+     *  @return True if the query is a flat #SUM, #OR, or #WSUM that
+     *          the retrieval model supports.
+     */
+    public static boolean canEvaluate(Qry q, RetrievalModel r) {
+
+        if (q.args.size() == 0)
+            return false;
+
+        if (q instanceof QrySopSum) {
+            if (!(r instanceof RetrievalModelBM25))
+                return false;
+        } else if (q instanceof QrySopOr) {
+            if (!(r instanceof RetrievalModelUnrankedBoolean) &&
+                !(r instanceof RetrievalModelRankedBoolean))
+                return false;
+        } else if (q instanceof QrySopWSum) {
+            if (!(r instanceof RetrievalModelIndri))
+                return false;
+        } else {
+            return false;
+        }
+
+        for (Qry q_i : q.args) {
+            if (!(q_i instanceof QrySopScore))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     *  The DAAT/TAAT planner.  Term-at-a-time evaluation is chosen for
+     *  queries that it can evaluate, that have more than one argument,
+     *  and whose inverted lists are long compared to the number of
+     *  documents, because then most of the accumulator is used.
+     *  Document-at-a-time evaluation is better for selective queries.
+     *  @param q An optimized query that has not been initialized.
+     *  @param r The retrieval model.
+     *  @return True if the query should be evaluated term-at-a-time.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public static boolean isPreferred(Qry q, RetrievalModel r)
+            throws IOException {
+
+        if ((q.args.size() < 2) || !canEvaluate(q, r))
+            return false;
+
+        long postings = 0;
+
+        for (Qry q_i : q.args)
+            postings += QryOptimizer.estimateDf(q_i.getArg(0), r);
+
+        return (postings >= MIN_POSTINGS_PER_DOC * Idx.INDEXREADER.maxDoc());
+    }
+
+    /**
+     *  Evaluate a query and return its top k documents.
+     *  @param q A query that canEvaluate accepts.  It must not be
+     *         initialized yet.
+     *  @param r The retrieval model.
+     *  @param k The number of documents that will be reported.
+     *  @return The top k documents, sorted by score and external id.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public static ScoreList evaluate(Qry q, RetrievalModel r, int k)
+            throws IOException {
+
+        //  Inverted lists are read directly, so terms must not stream
+        //  their postings.
+
+        for (Qry q_i : q.args) {
+            QryIop list = q_i.getArg(0);
+
+            if (list instanceof QryIopTerm)
+                ((QryIopTerm) list).setMaterialize(true);
+        }
+
+        q.initialize(r);
+
+        int maxDoc = Idx.INDEXREADER.maxDoc();
+        double[] scores = new double[maxDoc];
+        BitSet matched = new BitSet(maxDoc);
+
+        //  Every document in any inverted list matches.
+
+        for (Qry q_i : q.args) {
+            InvList list = q_i.getArg(0).getInvertedList();
+
+            for (int p = 0; p < list.df; p++)
+                matched.set(list.getDocid(p));
+        }
+
+        if (q instanceof QrySopSum)
+            accumulateBM25((QrySopSum) q, (RetrievalModelBM25) r, scores);
+        else if (q instanceof QrySopOr)
+            accumulateBoolean((QrySopOr) q, r, scores);
+        else
+            accumulateIndri((QrySopWSum) q, (RetrievalModelIndri) r,
+                            matched, scores);
+
+        TopKCollector topK = new TopKCollector(k);
+
+        for (int docid = matched.nextSetBit(0); docid >= 0;
+             docid = matched.nextSetBit(docid + 1))
+            topK.add(docid, scores[docid]);
+
+        return topK.toScoreList();
+    }
+
+    /**
+     *  Add each argument's BM25 scores to the accumulators, as
+     *  QrySopSum does.
+     */
+    private static void accumulateBM25(QrySopSum q, RetrievalModelBM25 r,
+                                       double[] scores)
+            throws IOException {
+
+        for (Qry q_i : q.args) {
+            QrySopScore scorer = (QrySopScore) q_i;
+            InvList list = scorer.getArg(0).getInvertedList();
+
+            for (int p = 0; p < list.df; p++) {
+                int docid = list.getDocid(p);
+                scores[docid] += scorer.calculateBM25ScoreByTf(r, list.getTf(p), docid);
+            }
+        }
+    }
+
+    /**
+     *  Combine each argument's Boolean scores in the accumulators, as
+     *  QrySopOr does.
+     */
+    private static void accumulateBoolean(QrySopOr q, RetrievalModel r,
+                                          double[] scores) {
+
+        boolean ranked = (r instanceof RetrievalModelRankedBoolean);
+
+        for (Qry q_i : q.args) {
+            InvList list = q_i.getArg(0).getInvertedList();
+
+            for (int p = 0; p < list.df; p++) {
+                int docid = list.getDocid(p);
+
+                if (ranked)
+                    scores[docid] = Math.max((double) list.getTf(p), scores[docid]);
+                else
+                    scores[docid] = 1.0;
+            }
+        }
+    }
+
+    /**
+     *  Add each argument's weighted Indri scores to the accumulators,
+     *  as QrySopWSum does.  A matched document that is not in an
+     *  argument's inverted list gets the argument's default score.
+     */
+    private static void accumulateIndri(QrySopWSum q, RetrievalModelIndri r,
+                                        BitSet matched, double[] scores)
+            throws IOException {
+
+        for (int i = 0; i < q.args.size(); i++) {
+            QrySopScore scorer = (QrySopScore) q.args.get(i);
+            InvList list = scorer.getArg(0).getInvertedList();
+            double weight = q.getWeight(i);
+            double sumWeight = q.getSumWeight();
+            int p = 0;
+
+            for (int docid = matched.nextSetBit(0); docid >= 0;
+                 docid = matched.nextSetBit(docid + 1)) {
+
+                if ((p < list.df) && (list.getDocid(p) == docid)) {
+                    scores[docid] += weight/sumWeight *
+                            scorer.calculateIndriScoreByTf(r, list.getTf(p), docid);
+                    p++;
+                } else {
+                    scores[docid] += weight/sumWeight *
+                            scorer.getDefaultScore(r, docid);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.*;
+
+/**
+ *  A process-wide lexicon of corpus term statistics.  Query expansion
+ *  and feature extraction look up the df and ctf of the same terms
+ *  over and over (once per term per document), and each Lucene lookup
+ *  is a seek in the terms dictionary.  TermStats reads the statistics
+ *  of a (field, term) pair from the index the first time that it is
+ *  requested, gives the pair a compact integer term id, and stores the
+ *  statistics in primitive arrays indexed by that id.  Later lookups
+ *  are a hash lookup, or just an array read if the caller keeps the
+ *  term id.
+ *  <p>
+ *  Two collection term frequencies are kept.  getCtf is Lucene's
+ *  totalTermFreq, which counts deleted documents, like getDf.
+ *  getLiveCtf counts only live documents, which is what the ctf of an
+ *  InvList is.  They are the same unless the index has deletions.
+ *  </p>
+ */
+public class TermStats {
+
+  //  --------------- Constants and variables ---------------------
+
+  private static final int INITIAL_CAPACITY = 1024;
+
+  /**
+   *  A live ctf that has not been read yet.
+   */
+  private static final long UNKNOWN = -1;
+
+  /**
+   *  Term ids, keyed by field and term.
+   */
+  private static ConcurrentHashMap<String, Integer> ids =
+    new ConcurrentHashMap<String, Integer>();
+
+  /**
+   *  The number of term ids that are in use.  Only changed while
+   *  holding the TermStats.class lock.
+   */
+  private static int size = 0;
+
+  /**
+   *  The statistics, indexed by term id.  When the arrays are full, a
+   *  larger copy replaces them, so readers never lock:  a term id is
+   *  published (in ids) after its statistics are written, and a larger
+   *  copy is published (in this volatile field) after it is filled.
+   */
+  private static volatile Table table = new Table (INITIAL_CAPACITY);
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  Parallel arrays of term statistics.
+   */
+  private static class Table {
+    final int[] df;
+    final long[] ctf;
+    final long[] liveCtf;
+    final String[] fields;
+    final String[] terms;
+
+    Table (int capacity) {
+      this.df = new int[capacity];
+      this.ctf = new long[capacity];
+      this.liveCtf = new long[capacity];
+      this.fields = new String[capacity];
+      this.terms = new String[capacity];
+    }
+
+    /**
+     *  Get a copy of the table with room for more terms.
+     */
+    Table grow () {
+      Table t = new Table (2 * this.df.length);
+
+      System.arraycopy (this.df, 0, t.df, 0, this.df.length);
+      System.arraycopy (this.ctf, 0, t.ctf, 0, this.ctf.length);
+      System.arraycopy (this.liveCtf, 0, t.liveCtf, 0, this.liveCtf.length);
+      System.arraycopy (this.fields, 0, t.fields, 0, this.fields.length);
+      System.arraycopy (this.terms, 0, t.terms, 0, this.terms.length);
+      return t;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Forget all term statistics, e.g., because a different index was
+   *  opened.
+   */
+  public static synchronized void clear () {
+    TermStats.ids.clear ();
+    TermStats.size = 0;
+  }
+
+  /**
+   *  Get the term id of a term, reading its statistics from the index
+   *  if this is the first time that it is requested.  The index is
+   *  read without holding a lock; only adding the term is locked.
+   *  @param fieldString The field that the term occurs in.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @return The term id.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int getTermId (String fieldString, String termString)
+    throws IOException {
+
+    String key = fieldString + '\0' + termString;
+    Integer id = TermStats.ids.get (key);
+
+    if (id != null) {
+      return id;
+    }
+
+    Term term = new Term (fieldString, new BytesRef (termString));
+    int df = Idx.INDEXREADER.docFreq (term);
+    long ctf = Idx.INDEXREADER.totalTermFreq (term);
+    long liveCtf = Idx.INDEXREADER.hasDeletions () ? UNKNOWN : ctf;
+
+    synchronized (TermStats.class) {
+
+      //  Another thread may have added the term meanwhile.
+
+      id = TermStats.ids.get (key);
+
+      if (id != null) {
+        return id;
+      }
+
+      Table t = TermStats.table;
+      int i = TermStats.size;
+
+      if (i == t.df.length) {
+        t = t.grow ();
+      }
+
+      t.df[i] = df;
+      t.ctf[i] = ctf;
+      t.liveCtf[i] = liveCtf;
+      t.fields[i] = fieldString;
+      t.terms[i] = termString;
+
+      TermStats.table = t;
+      TermStats.size++;
+      TermStats.ids.put (key, i);
+      return i;
+    }
+  }
+
+  /**
+   *  Get the document frequency of a term, including deleted documents.
+   *  @param termId A term id from getTermId.
+   *  @return The df.
+   */
+  public static int getDf (int termId) {
+    return TermStats.table.df[termId];
+  }
+
+  /**
+   *  Get the collection term frequency of a term, including deleted
+   *  documents.
+   *  @param termId A term id from getTermId.
+   *  @return The ctf.
+   */
+  public static long getCtf (int termId) {
+    return TermStats.table.ctf[termId];
+  }
+
+  /**
+   *  Get the collection term frequency of a term in live documents.
+   *  If the index has deletions, this reads the term's inverted list
+   *  the first time that it is requested.  The live ctf is written
+   *  after the term is added, so unlike df and ctf it is read and
+   *  written while holding the lock.
+   *  @param termId A term id from getTermId.
+   *  @return The ctf of the term's InvList.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static long getLiveCtf (int termId) throws IOException {
+
+    synchronized (TermStats.class) {
+      if (TermStats.table.liveCtf[termId] != UNKNOWN) {
+        return TermStats.table.liveCtf[termId];
+      }
+    }
+
+    Table t = TermStats.table;
+    String fieldString = t.fields[termId];
+    String termString = t.terms[termId];
+
+    //  Read the inverted list outside of the lock.
+
+    NativeIndex nativeIndex = Idx.getNativeIndex ();
+    long value = (nativeIndex != null) ?
+      nativeIndex.getCtf (fieldString, termString) :
+      InvListCache.getInvList (termString, fieldString).ctf;
+
+    synchronized (TermStats.class) {
+      TermStats.table.liveCtf[termId] = value;
+    }
+
+    return value;
+  }
+
+  /**
+   *  Get the document frequency of a term, including deleted documents.
+   *  @param fieldString The field that the term occurs in.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @return The df.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int getDf (String fieldString, String termString)
+    throws IOException {
+    return getDf (getTermId (fieldString, termString));
+  }
+
+  /**
+   *  Get the collection term frequency of a term, including deleted
+   *  documents.
+   *  @param fieldString The field that the term occurs in.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @return The ctf.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static long getCtf (String fieldString, String termString)
+    throws IOException {
+    return getCtf (getTermId (fieldString, termString));
+  }
+
+  /**
+   *  Get the collection term frequency of a term in live documents.
+   *  @param fieldString The field that the term occurs in.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @return The ctf of the term's InvList.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static long getLiveCtf (String fieldString, String termString)
+    throws IOException {
+    return getLiveCtf (getTermId (fieldString, termString));
+  }
+
+}
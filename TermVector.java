@@ -3,9 +3,9 @@
  */
 
 import java.io.*;
+import java.util.*;
 
 import org.apache.lucene.index.DocsAndPositionsEnum;
-import org.apache.lucene.index.Term;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
 
@@ -39,7 +39,7 @@ public class TermVector {
   private int[] positions;	// Index of the stem that at this position
   private String[] stems;	// The vocabulary. 0 indicates a stopword
   private int[] stemsFreq;	// The frequency (tf) of each entry in stems
-  private Term[] terms;
+  private int[] termIds;	// TermStats ids of stems, or -1 if not looked up yet
 
   //  --------------- Methods ---------------------------------------
 
@@ -67,8 +67,9 @@ public class TermVector {
 
     int stemsLength = (int) this.luceneTerms.size();
     stems = new String[stemsLength + 1];
-    terms = new Term[stemsLength + 1];
     stemsFreq = new int[stemsLength + 1];
+    termIds = new int[stemsLength + 1];
+    Arrays.fill(termIds, -1);
 
     //  Iterate through the terms, filling in the stem and frequency
     //  information, and finding the position of the last term. The
@@ -79,7 +80,6 @@ public class TermVector {
     int lastPosition = 0;
     for (int i = 1; ithTerm.next() != null; i++) {
       stems[i] = ithTerm.term().utf8ToString();
-      terms[i] = new Term(fieldName, ithTerm.term().utf8ToString());
       stemsFreq[i] = (int) ithTerm.totalTermFreq();
       fieldLength += stemsFreq[i]; 
 
@@ -198,7 +198,7 @@ public class TermVector {
    * @throws IOException  Error accessing the Lucene index
    */
   public long totalStemFreq(int i) throws IOException {
-    return Idx.INDEXREADER.totalTermFreq(terms[i]);
+    return TermStats.getCtf(this.termId(i));
   }
   
   /**
@@ -208,7 +208,19 @@ public class TermVector {
    * @throws IOException Error accessing the Lucene index
    */
   public int stemDf(int i) throws IOException {
-    return Idx.INDEXREADER.docFreq(terms[i]);
+    return TermStats.getDf(this.termId(i));
+  }
+
+  /**
+   * Returns the TermStats id of the i'th stem.
+   * @param i Index of the stem.
+   * @return The term id.
+   * @throws IOException Error accessing the Lucene index
+   */
+  private int termId(int i) throws IOException {
+    if (termIds[i] < 0)
+      termIds[i] = TermStats.getTermId(this.fieldName, stems[i]);
+    return termIds[i];
   }
   
 }
@@ -0,0 +1,254 @@
+/**
+ * Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+
+/**
+ *  Collects the k best documents of a query.  Documents are ranked by
+ *  score, and documents that have the same score are ranked by external
+ *  id, which is the order that results are printed in.
+ *  <p>
+ *  The collector is a min-heap of (score, docid) pairs, so the worst of
+ *  the k documents is at the root and a document that can not make the
+ *  top k is rejected with one comparison.  Score ties are broken by
+ *  external id ordinals if the index has them (see Idx), otherwise by
+ *  resolving the external ids; ties only matter between documents
+ *  that are in, or at the edge of, the top k.  Memory use is O(k)
+ *  instead of O(number of matching documents).
+ *  </p>
+ */
+public class TopKCollector {
+
+    //  --------------- Constants and variables ---------------------
+
+    private final int k;
+    private int size = 0;
+
+    private double[] scores;
+    private int[] docids;
+
+    /**
+     *  The external id of each heap entry, or null if it has not been
+     *  needed yet.
+     */
+    private String[] externalIds;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     *  @param k The number of documents to keep.
+     */
+    public TopKCollector(int k) {
+        this.k = Math.max(k, 0);
+        this.scores = new double[this.k];
+        this.docids = new int[this.k];
+        this.externalIds = new String[this.k];
+    }
+
+    /**
+     *  Offer a document to the collector.
+     *  @param docid An internal document id.
+     *  @param score The document's score.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public void add(int docid, double score) throws IOException {
+
+        if (this.size < this.k) {
+            this.scores[this.size] = score;
+            this.docids[this.size] = docid;
+            this.externalIds[this.size] = null;
+            this.siftUp(this.size++);
+            return;
+        }
+
+        if (this.k == 0)
+            return;
+
+        int c = compareScores(score, this.scores[0]);
+
+        if (c < 0)
+            return;
+
+        String externalId = null;
+
+        if (c == 0) {
+            int[] ordinals = Idx.getExternalIdOrdinals();
+
+            if (ordinals != null) {
+                if (ordinals[docid] >= ordinals[this.docids[0]])
+                    return;
+            } else {
+                externalId = Idx.getExternalDocid(docid);
+
+                if (externalId.compareTo(this.getExternalId(0)) >= 0)
+                    return;
+            }
+        }
+
+        this.scores[0] = score;
+        this.docids[0] = docid;
+        this.externalIds[0] = externalId;
+        this.siftDown(0);
+    }
+
+    /**
+     *  Indicates whether the collector holds k documents.
+     */
+    public boolean isFull() {
+        return (this.size == this.k);
+    }
+
+    /**
+     *  Get the lowest score that a document needs to enter the top k.
+     *  A document with exactly this score enters only if its external
+     *  id sorts before that of the current k'th document.
+     *  @return The score, or negative infinity if fewer than k
+     *          documents have been collected.
+     */
+    public double getThreshold() {
+        return ((this.k > 0) && this.isFull()) ?
+                this.scores[0] : Double.NEGATIVE_INFINITY;
+    }
+
+    /**
+     *  Get the number of documents that are held.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     *  Get the collected documents, best first.  This empties the
+     *  collector.
+     *  @return The top k documents, sorted by score and external id.
+     *  @throws IOException Error accessing the Lucene index.
+     */
+    public ScoreList toScoreList() throws IOException {
+
+        int n = this.size;
+        int[] sortedDocids = new int[n];
+        double[] sortedScores = new double[n];
+        String[] sortedExternalIds = new String[n];
+
+        //  Repeatedly remove the worst document.
+
+        for (int i = n - 1; i >= 0; i--) {
+            sortedDocids[i] = this.docids[0];
+            sortedScores[i] = this.scores[0];
+            sortedExternalIds[i] = this.externalIds[0];
+
+            this.size--;
+            this.move(this.size, 0);
+
+            if (this.size > 0)
+                this.siftDown(0);
+        }
+
+        ScoreList r = new ScoreList();
+
+        for (int i = 0; i < n; i++)
+            r.add(sortedDocids[i], sortedScores[i], sortedExternalIds[i]);
+
+        return r;
+    }
+
+    /**
+     *  Compare two scores the way that ScoreList.sort does, i.e., a NaN
+     *  score ties with every score.
+     */
+    private static int compareScores(double a, double b) {
+        if (a > b)
+            return 1;
+        else if (a < b)
+            return -1;
+        else
+            return 0;
+    }
+
+    /**
+     *  Get the external id of a heap entry, resolving it if necessary.
+     */
+    private String getExternalId(int i) throws IOException {
+        if (this.externalIds[i] == null)
+            this.externalIds[i] = Idx.getExternalDocid(this.docids[i]);
+        return this.externalIds[i];
+    }
+
+    /**
+     *  Indicates whether heap entry i ranks below heap entry j.
+     */
+    private boolean isWorse(int i, int j) throws IOException {
+        int c = compareScores(this.scores[i], this.scores[j]);
+
+        if (c != 0)
+            return c < 0;
+
+        int[] ordinals = Idx.getExternalIdOrdinals();
+
+        if (ordinals != null)
+            return ordinals[this.docids[i]] > ordinals[this.docids[j]];
+
+        return this.getExternalId(i).compareTo(this.getExternalId(j)) > 0;
+    }
+
+    /**
+     *  Copy heap entry from to heap entry to.
+     */
+    private void move(int from, int to) {
+        this.scores[to] = this.scores[from];
+        this.docids[to] = this.docids[from];
+        this.externalIds[to] = this.externalIds[from];
+    }
+
+    /**
+     *  Swap two heap entries.
+     */
+    private void swap(int i, int j) {
+        double score = this.scores[i];
+        int docid = this.docids[i];
+        String externalId = this.externalIds[i];
+
+        this.move(j, i);
+        this.scores[j] = score;
+        this.docids[j] = docid;
+        this.externalIds[j] = externalId;
+    }
+
+    /**
+     *  Restore the heap property after entry i was added.
+     */
+    private void siftUp(int i) throws IOException {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+
+            if (!this.isWorse(i, parent))
+                break;
+
+            this.swap(i, parent);
+            i = parent;
+        }
+    }
+
+    /**
+     *  Restore the heap property after entry i was replaced by a
+     *  better entry.
+     */
+    private void siftDown(int i) throws IOException {
+        while (true) {
+            int child = 2 * i + 1;
+
+            if (child >= this.size)
+                break;
+
+            if ((child + 1 < this.size) && this.isWorse(child + 1, child))
+                child++;
+
+            if (!this.isWorse(child, i))
+                break;
+
+            this.swap(i, child);
+            i = child;
+        }
+    }
+}
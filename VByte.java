@@ -0,0 +1,78 @@
+/**
+ * Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+
+/**
+ *  Variable-byte (VByte) encoding of non-negative integers, seven bits
+ *  per byte, least significant group first.  The high bit of a byte is
+ *  set if more bytes follow.  Compressed inverted lists (InvList) and
+ *  external id columns (ExternalIdColumn) are written in this format,
+ *  so both use these methods.
+ */
+class VByte {
+
+    //  --------------- Constants and variables ---------------------
+
+    /**
+     *  The maximum number of bytes in a VByte integer.
+     */
+    static final int MAX_BYTES = 5;
+
+    //  --------------- Methods ---------------------------------------
+
+    /**
+     *  Write a non-negative integer to a byte array.
+     *  @param bytes The output buffer.
+     *  @param length The number of bytes already used in the buffer.
+     *  @param value The integer to write.
+     *  @return The number of bytes used after the integer is written.
+     */
+    static int write(byte[] bytes, int length, int value) {
+
+        while ((value & ~0x7F) != 0) {
+            bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        bytes[length++] = (byte) value;
+        return length;
+    }
+
+    /**
+     *  Write a non-negative integer to a stream.
+     *  @param out The output stream.
+     *  @param value The integer to write.
+     *  @throws IOException Error writing the stream.
+     */
+    static void write(OutputStream out, int value) throws IOException {
+
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        out.write(value);
+    }
+
+    /**
+     *  Read an integer at the buffer's position, and advance the
+     *  position past it.
+     *  @param bytes The input buffer.
+     *  @return The integer.
+     */
+    static int read(ByteBuffer bytes) {
+
+        byte b = bytes.get();
+        int value = b & 0x7F;
+
+        for (int shift = 7; b < 0; shift += 7) {
+            b = bytes.get();
+            value |= (b & 0x7F) << shift;
+        }
+
+        return value;
+    }
+}